@@ -0,0 +1,116 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+ * Helpers for the *Benchmark tests. Those are @LargeTest: they write large
+ * files and take minutes, so they're meant to be run one class at a time,
+ * e.g.
+ *     adb shell am instrument -w -e class com.rdm.rdmtestplayer.ContentHasherBenchmark \
+ *         com.rdm.rdmtestplayer.test/android.test.InstrumentationTestRunner
+ * and report their results to logcat, under the benchmark's class name.
+ */
+final class Benchmarks {
+    private Benchmarks() {
+    }
+
+    // Peak heap use above what was in use at start(), sampled every
+    // millisecond. Android has no memory pool MXBeans, so sampling is as
+    // close as it gets; a spike shorter than a sample can be missed.
+    static class HeapSampler {
+        private final Runtime mRuntime = Runtime.getRuntime();
+        private long mBaseline;
+        private volatile long mPeak;
+        private volatile boolean mStopped;
+        private Thread mThread;
+
+        void start() {
+            System.gc();
+            System.runFinalization();
+            System.gc();
+            mBaseline = getUsed();
+            mPeak = mBaseline;
+            mStopped = false;
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!mStopped) {
+                        sample();
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "HeapSampler");
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+
+        // Returns the peak, in bytes
+        long stop() throws InterruptedException {
+            sample();
+            mStopped = true;
+            mThread.join();
+            return mPeak - mBaseline;
+        }
+
+        private void sample() {
+            long used = getUsed();
+            if (used > mPeak)
+                mPeak = used;
+        }
+
+        private long getUsed() {
+            return mRuntime.totalMemory() - mRuntime.freeMemory();
+        }
+    }
+
+    static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, null);
+        if (!dir.delete() || !dir.mkdirs())
+            throw new IOException("Failed to create " + dir);
+        return dir;
+    }
+
+    static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    // Random bytes, the same for the same seed
+    static void writeRandomFile(File file, long sizeInBytes, long seed) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Random random = new Random(seed);
+        byte[] buffer = new byte[1024 * 1024];
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for (long written = 0; written < sizeInBytes; written += buffer.length) {
+                random.nextBytes(buffer);
+                out.write(buffer, 0, (int) Math.min(buffer.length, sizeInBytes - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static double toMegabytesPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0d * 1024.0d) / (nanos / 1e9d);
+    }
+
+    static double toMillis(long nanos) {
+        return nanos / 1e6d;
+    }
+}
@@ -0,0 +1,97 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.Random;
+
+/*
+ * Per-file overhead of fetching a catalog of FILES small files one after
+ * another from a keep-alive LoopbackServer: through
+ * ContentSync.getUrlBytes(), which releases connections for reuse (see
+ * HttpConnections), and through the path before it, which called
+ * disconnect() after every file. Each is warmed up with WARM_UP requests
+ * first, and run twice, alternately.
+ */
+@LargeTest
+public class ConnectionReuseBenchmark extends TestCase {
+    private static final String TAG = "ConnectionReuseBenchmark";
+
+    private static final int FILES = 10000;
+    private static final int FILE_SIZE = 50 * 1024;
+    private static final int WARM_UP = 2000;
+    private static final int RUNS = 3;
+
+    private LoopbackServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        byte[] content = new byte[FILE_SIZE];
+        new Random(1).nextBytes(content);
+        mServer = new LoopbackServer(content, "\"v1\"", 1);
+        mServer.setKeepAlive(true);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        super.tearDown();
+    }
+
+    public void testReuseAgainstDisconnect() throws Exception {
+        fetch(WARM_UP, false);
+        fetch(WARM_UP, true);
+        for (int run = 0; run < RUNS; run++) {
+            measure(false);
+            measure(true);
+        }
+    }
+
+    private void measure(boolean reuse) throws IOException {
+        int connections = mServer.getConnectionCount();
+        long start = System.nanoTime();
+        fetch(FILES, reuse);
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, String.format(Locale.US, "%-10s %6.1f s  %5d us per file  %5d connections",
+                reuse ? "reuse" : "disconnect", elapsed / 1e9d, elapsed / 1000 / FILES,
+                mServer.getConnectionCount() - connections));
+    }
+
+    private void fetch(int files, boolean reuse) throws IOException {
+        for (int i = 0; i < files; i++) {
+            String urlSpec = mServer.getBaseUrl() + "clip" + i + ".mp4";
+            ByteArrayOutputStream out = new ByteArrayOutputStream(FILE_SIZE);
+            assertTrue(reuse ? ContentSync.getUrlBytes(urlSpec, out, FILE_SIZE) : getUrlBytes(urlSpec, out));
+            assertEquals(FILE_SIZE, out.size());
+        }
+    }
+
+    // ContentSync.getUrlBytes() before HttpConnections
+    private static boolean getUrlBytes(String urlSpec, OutputStream outputStream) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlSpec).openConnection();
+        try {
+            InputStream in = connection.getInputStream();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+                return false;
+            int bytesRead;
+            byte[] buffer = new byte[32 * 1024];
+            while ((bytesRead = in.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, bytesRead);
+            }
+            return true;
+        } finally {
+            outputStream.close();
+            connection.disconnect();
+        }
+    }
+}
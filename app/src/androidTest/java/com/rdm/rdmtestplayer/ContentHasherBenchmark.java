@@ -0,0 +1,108 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/*
+ * Hashing throughput of ContentHasher.hash() for each algorithm of
+ * ContentDigest, on a file of LARGE_SIZE random bytes, and compared with
+ * the stream path it replaced, on that file and on one of SMALL_SIZE.
+ * The files are written by setUp(), so they're in the page cache if
+ * there's room for them; if not, flash read speed is part of the result.
+ */
+@LargeTest
+public class ContentHasherBenchmark extends TestCase {
+    private static final String TAG = "ContentHasherBenchmark";
+
+    private static final long LARGE_SIZE = 2L * 1024 * 1024 * 1024;
+    private static final long SMALL_SIZE = 10L * 1024 * 1024;
+    private static final int RUNS = 3;
+    // Small files are hashed this many times per run
+    private static final int SMALL_REPETITIONS = 20;
+
+    private File mDir;
+    private File mSmallFile;
+    private File mLargeFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = Benchmarks.createTempDir("hash");
+        mSmallFile = new File(mDir, "small");
+        Benchmarks.writeRandomFile(mSmallFile, SMALL_SIZE, 1);
+        mLargeFile = new File(mDir, "large");
+        Benchmarks.writeRandomFile(mLargeFile, LARGE_SIZE, 1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Benchmarks.deleteTree(mDir);
+        super.tearDown();
+    }
+
+    public void testAlgorithms() throws Exception {
+        for (String algorithm : ContentDigest.ALGORITHMS) {
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                long start = System.nanoTime();
+                ContentHasher.hash(mLargeFile, algorithm);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            Log.i(TAG, String.format(Locale.US, "%-7s %8.0f ms  %6.0f MB/s", algorithm,
+                    Benchmarks.toMillis(best), Benchmarks.toMegabytesPerSecond(LARGE_SIZE, best)));
+        }
+    }
+
+    public void testChannelAgainstStream() throws Exception {
+        for (File file : new File[]{mSmallFile, mLargeFile}) {
+            int repetitions = file == mSmallFile ? SMALL_REPETITIONS : 1;
+            for (String algorithm : ContentDigest.ALGORITHMS) {
+                String expected = ContentHasher.toHexString(ContentHasher.hash(file, algorithm));
+                long[] best = {Long.MAX_VALUE, Long.MAX_VALUE};
+                for (int run = 0; run < RUNS; run++) {
+                    for (int path = 0; path < best.length; path++) {
+                        long start = System.nanoTime();
+                        for (int i = 0; i < repetitions; i++) {
+                            String hashString = path == 0 ? hashStream(file, algorithm)
+                                    : ContentHasher.toHexString(ContentHasher.hash(file, algorithm));
+                            assertEquals(expected, hashString);
+                        }
+                        best[path] = Math.min(best[path], (System.nanoTime() - start) / repetitions);
+                    }
+                }
+                Log.i(TAG, String.format(Locale.US, "%5d MB %-7s stream %8.1f ms  channel %8.1f ms",
+                        file.length() >> 20, algorithm, Benchmarks.toMillis(best[0]), Benchmarks.toMillis(best[1])));
+            }
+        }
+    }
+
+    // The path before ContentHasher: a FileInputStream, a new 32 KB heap
+    // buffer and digest per file, and hex by String concatenation
+    private static String hashStream(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = ContentDigest.getInstance(algorithm);
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[32 * 1024];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+        String result = "";
+        for (byte hashByte : digest.digest()) {
+            result += Integer.toString((hashByte & 0xff) + 0x100, 16).substring(1);
+        }
+        return result;
+    }
+}
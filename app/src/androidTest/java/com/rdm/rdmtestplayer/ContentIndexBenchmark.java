@@ -0,0 +1,133 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Start-up cost of a local content list of LINES entries: time and peak
+ * heap to load it and look up LOOKUPS entries by path, from the text
+ * through ContentListParser (the path without an index) and from its
+ * ContentIndex. Both files are written by setUp(), so they're likely in
+ * the page cache; after a reboot the text path also has to read all of
+ * the text, while the index only pages in what's used.
+ */
+@LargeTest
+public class ContentIndexBenchmark extends TestCase {
+    private static final String TAG = "ContentIndexBenchmark";
+
+    private static final int LINES = 1000000;
+    private static final int LOOKUPS = 100;
+    private static final int RUNS = 4;
+
+    private File mDownloadPath;
+    private File mListFile;
+    private File mIndexFile;
+    private final String[] mFileNames = new String[LOOKUPS];
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDownloadPath = Benchmarks.createTempDir("index");
+        Content.setDownloadPath(mDownloadPath.getPath());
+        mListFile = new File(Content.getLocalContentListUrl());
+        mIndexFile = new File(Content.getLocalContentIndexUrl());
+        OutputStream out = new FileOutputStream(mListFile);
+        try {
+            for (int i = 0; i < LINES; i++) {
+                out.write(String.format(Locale.US, "media/dir%03d/clip_%07d.mp4,%d,%032x\n",
+                        i % 1000, i, 50 * 1024 * 1024 + i, i).getBytes("UTF-8"));
+            }
+        } finally {
+            out.close();
+        }
+        assertTrue(ContentIndex.write(parseText(), mIndexFile));
+        // spread over the list, so a linear search costs what it would on average
+        for (int i = 0; i < LOOKUPS; i++) {
+            int line = (int) ((long) LINES * i / LOOKUPS);
+            mFileNames[i] = String.format(Locale.US, "media/dir%03d/clip_%07d.mp4", line % 1000, line);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Benchmarks.deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testIndexAgainstText() throws Exception {
+        Log.i(TAG, String.format(Locale.US, "text %d MB, index %d MB",
+                mListFile.length() >> 20, mIndexFile.length() >> 20));
+        // the first run of each includes warming up
+        for (int run = 0; run < RUNS; run++) {
+            measure(run, false);
+            measure(run, true);
+        }
+    }
+
+    private void measure(int run, boolean indexed) throws Exception {
+        Benchmarks.HeapSampler heap = new Benchmarks.HeapSampler();
+        heap.start();
+        long start = System.nanoTime();
+        List<Content> contentList;
+        ContentIndex index = null;
+        if (indexed) {
+            index = ContentIndex.open(mIndexFile);
+            assertNotNull(index);
+            contentList = index.asContentList();
+        } else {
+            contentList = parseText();
+        }
+        long loaded = System.nanoTime();
+        // as ContentSync.findLocalPath() does it
+        for (String fileName : mFileNames) {
+            String localPath = null;
+            if (indexed) {
+                int i = index.find(fileName);
+                if (i >= 0)
+                    localPath = index.getLocalPath(i);
+            } else {
+                for (Content content : contentList) {
+                    if (content.getFileName().equals(fileName)) {
+                        localPath = content.mLocalPath;
+                        break;
+                    }
+                }
+            }
+            assertNotNull(localPath);
+        }
+        long end = System.nanoTime();
+        long peak = heap.stop();
+        assertEquals(LINES, contentList.size());
+        Log.i(TAG, String.format(Locale.US, "run %d %-5s load %7.1f ms  %d lookups %7.1f ms  peak heap +%d MB",
+                run, indexed ? "index" : "text", Benchmarks.toMillis(loaded - start), LOOKUPS,
+                Benchmarks.toMillis(end - loaded), peak >> 20));
+    }
+
+    // As parseLocalContentList() does it without an index
+    private List<Content> parseText() throws IOException {
+        ContentListParser parser = new ContentListParser(null);
+        InputStream in = new FileInputStream(mListFile);
+        try {
+            int bytesRead;
+            byte[] buffer = new byte[32 * 1024];
+            while ((bytesRead = in.read(buffer)) > 0) {
+                parser.write(buffer, 0, bytesRead);
+            }
+            parser.close();
+        } finally {
+            in.close();
+        }
+        return parser.getContentList();
+    }
+}
@@ -0,0 +1,103 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Parse time and peak heap for a content list of LINES entries, fetched
+ * from a LoopbackServer, through ContentListParser and through the path
+ * it replaced: the whole response as bytes, then as a String, read back
+ * line by line and split on commas.
+ *
+ * A million entries take several hundred MB of heap on either path, more
+ * than most devices allow an app without android:largeHeap; lower LINES
+ * there.
+ */
+@LargeTest
+public class ContentListParserBenchmark extends TestCase {
+    private static final String TAG = "ContentListParserBenchmark";
+
+    private static final int LINES = 1000000;
+    private static final int RUNS = 4;
+
+    private File mDownloadPath;
+    private LoopbackServer mServer;
+    private String mUrl;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDownloadPath = Benchmarks.createTempDir("parser");
+        Content.setDownloadPath(mDownloadPath.getPath());
+        ByteArrayOutputStream list = new ByteArrayOutputStream();
+        for (int i = 0; i < LINES; i++) {
+            list.write(String.format(Locale.US, "media/dir%03d/clip_%07d.mp4,%d,%032x\n",
+                    i % 1000, i, 50 * 1024 * 1024 + i, i).getBytes("UTF-8"));
+        }
+        mServer = new LoopbackServer(list.toByteArray(), "\"v1\"", 1);
+        mUrl = mServer.getBaseUrl() + "content_list";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        Benchmarks.deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testStreamingAgainstCsv() throws Exception {
+        // the first run of each includes warming up
+        for (int run = 0; run < RUNS; run++) {
+            measure(run, false);
+            measure(run, true);
+        }
+    }
+
+    private void measure(int run, boolean streaming) throws Exception {
+        Benchmarks.HeapSampler heap = new Benchmarks.HeapSampler();
+        heap.start();
+        long start = System.nanoTime();
+        List<Content> contentList = streaming ? parseStreaming() : parseCsv();
+        long elapsed = System.nanoTime() - start;
+        long peak = heap.stop();
+        assertEquals(LINES, contentList.size());
+        Log.i(TAG, String.format(Locale.US, "run %d %-9s %7.0f ms  peak heap +%d MB",
+                run, streaming ? "streaming" : "csv", Benchmarks.toMillis(elapsed), peak >> 20));
+    }
+
+    // As parseRemoteContentList() does it
+    private List<Content> parseStreaming() throws IOException {
+        File tempFile = new File(mDownloadPath, "content_list.tmp");
+        ContentListParser parser = new ContentListParser(new FileOutputStream(tempFile));
+        assertTrue(ContentSync.getUrlBytes(mUrl, parser, 0));
+        return parser.getContentList();
+    }
+
+    private List<Content> parseCsv() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ContentSync.getUrlBytes(mUrl, out, 0));
+        String list = new String(out.toByteArray());
+        List<Content> contentList = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new StringReader(list));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty())
+                continue;
+            String[] parts = line.split(",");
+            contentList.add(new Content(parts[0], Long.valueOf(parts[1]), parts[2], ContentDigest.MD5));
+        }
+        return contentList;
+    }
+}
@@ -0,0 +1,125 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Download throughput of many small files from a LoopbackServer that
+ * answers each request LATENCY_IN_MILLIS late and sends at most
+ * BYTES_PER_SECOND per connection, like a distant CDN: files/s and MB/s
+ * with a fixed number of workers, 1 to 16, each running Content.download()
+ * in turn, and with DownloadScheduler adjusting concurrency up to 16.
+ */
+@LargeTest
+public class DownloadSchedulerBenchmark extends TestCase {
+    private static final String TAG = "DownloadSchedulerBenchmark";
+
+    private static final int FILES = 128;
+    private static final int FILE_SIZE = 256 * 1024;
+    private static final long LATENCY_IN_MILLIS = 100;
+    private static final long BYTES_PER_SECOND = 1024 * 1024;
+    private static final int[] WORKERS = {1, 2, 4, 8, 12, 16};
+
+    private File mDownloadPath;
+    private LoopbackServer mServer;
+    private final List<String> mHashes = new ArrayList<>();
+    private int mMaxConcurrency;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDownloadPath = Benchmarks.createTempDir("scheduler");
+        Content.setDownloadPath(mDownloadPath.getPath());
+        mServer = new LoopbackServer(new byte[0], "\"v1\"", 1);
+        Random random = new Random(1);
+        for (int i = 0; i < FILES; i++) {
+            byte[] content = new byte[FILE_SIZE];
+            random.nextBytes(content);
+            mServer.putContent("/clip" + i + ".mp4", content);
+            mHashes.add(ContentHasher.toHexString(MessageDigest.getInstance("MD5").digest(content)));
+        }
+        mServer.setLatency(LATENCY_IN_MILLIS);
+        mServer.setBytesPerSecond(BYTES_PER_SECOND);
+        FileWriter writer = new FileWriter(Content.getLocalMirrorsUrl());
+        try {
+            writer.write("mirror.1=" + mServer.getBaseUrl() + "\n");
+        } finally {
+            writer.close();
+        }
+        Mirrors.load(new File(Content.getLocalMirrorsUrl()));
+        mMaxConcurrency = DownloadScheduler.getMaxConcurrency();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        DownloadScheduler.setMaxConcurrency(mMaxConcurrency);
+        mServer.close();
+        Benchmarks.deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testWorkers() throws Exception {
+        Log.i(TAG, String.format(Locale.US, "%d files of %d KB, %d ms latency, %d KB/s per connection",
+                FILES, FILE_SIZE >> 10, LATENCY_IN_MILLIS, BYTES_PER_SECOND >> 10));
+        for (int workers : WORKERS) {
+            final List<Content> contentList = newContentList();
+            ExecutorService executor = Executors.newFixedThreadPool(workers);
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (final Content content : contentList) {
+                tasks.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        content.download();
+                        return null;
+                    }
+                });
+            }
+            long start = System.nanoTime();
+            try {
+                executor.invokeAll(tasks);
+            } finally {
+                executor.shutdownNow();
+            }
+            report(workers + " workers", contentList, System.nanoTime() - start);
+        }
+
+        DownloadScheduler.setMaxConcurrency(16);
+        List<Content> contentList = newContentList();
+        DownloadScheduler scheduler = new DownloadScheduler();
+        long start = System.nanoTime();
+        scheduler.download(contentList);
+        report("AIMD, ended at " + scheduler.getConcurrency(), contentList, System.nanoTime() - start);
+    }
+
+    // With nothing downloaded yet
+    private List<Content> newContentList() {
+        Benchmarks.deleteTree(new File(ContentStore.getObjectsPath()));
+        List<Content> contentList = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            contentList.add(new Content("clip" + i + ".mp4", FILE_SIZE, mHashes.get(i), ContentDigest.MD5));
+        }
+        return contentList;
+    }
+
+    private static void report(String name, List<Content> contentList, long elapsed) {
+        for (Content content : contentList) {
+            assertTrue(content.getFileName(), content.isUpToDate());
+        }
+        Log.i(TAG, String.format(Locale.US, "%-18s %6.1f s  %5.1f files/s  %5.2f MB/s", name, elapsed / 1e9d,
+                contentList.size() / (elapsed / 1e9d),
+                Benchmarks.toMegabytesPerSecond((long) FILE_SIZE * contentList.size(), elapsed)));
+    }
+}
@@ -0,0 +1,293 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * A small HTTP server on the loopback interface that serves one body
+ * at any path, or others at paths given to putContent(), and misbehaves
+ * on request: it can drop connections at random offsets, ignore Range,
+ * go down (503), blackhole a transfer after some bytes, answer late, or
+ * send slowly. Every request is logged as
+ *     <Range> <If-Range> <status>
+ * with "-" for a missing header.
+ *
+ * It speaks HTTP/1.0 and closes each connection after one response,
+ * unless setKeepAlive() makes it keep them open for more, as HTTP/1.1.
+ */
+class LoopbackServer {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ServerSocket mServerSocket;
+    private final List<Socket> mSockets = new ArrayList<>();
+    private int mConnectionCount = 0;
+    private final List<String> mRequests = new ArrayList<>();
+    private final Map<String, byte[]> mContents = new HashMap<>();
+    private final Random mRandom;
+    private volatile byte[] mContent;
+    private volatile String mETag;
+    private volatile boolean mRanges = true;
+    private volatile int mDropsLeft = 0;
+    private volatile int mRequestsLeft = -1;
+    private volatile long mBlackholeAfter = -1;
+    private volatile long mBytesPerSecond = 0;
+    private volatile long mLatencyInMillis = 0;
+    private volatile boolean mKeepAlive = false;
+    private volatile boolean mClosed = false;
+
+    LoopbackServer(byte[] content, String eTag, long seed) throws IOException {
+        mContent = content;
+        mETag = eTag;
+        mRandom = new Random(seed);
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "LoopbackServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String getBaseUrl() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + "/";
+    }
+
+    // The same bytes can come with a new ETag, like after a redeploy
+    void setContent(byte[] content, String eTag) {
+        mContent = content;
+        mETag = eTag;
+    }
+
+    // Served at path, e.g. "/clip.mp4", instead of the body for any path
+    void putContent(String path, byte[] content) {
+        synchronized (mContents) {
+            mContents.put(path, content);
+        }
+    }
+
+    // false sends everything, with 200, whatever the range
+    void setRanges(boolean ranges) {
+        mRanges = ranges;
+    }
+
+    // The next drops responses end at a random offset of their body
+    void setDrops(int drops) {
+        mDropsLeft = drops;
+    }
+
+    // Answers the next requests, then only 503; -1 answers all of them
+    void setRequestsLeft(int requests) {
+        mRequestsLeft = requests;
+    }
+
+    // Sends this many bytes of each body, then nothing until closed; -1
+    // sends everything
+    void setBlackholeAfter(long bytes) {
+        mBlackholeAfter = bytes;
+    }
+
+    // 0 sends as fast as it can
+    void setBytesPerSecond(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // Waits this long before answering each request, like a link with
+    // that round trip time would
+    void setLatency(long latencyInMillis) {
+        mLatencyInMillis = latencyInMillis;
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    // Connections accepted so far
+    int getConnectionCount() {
+        synchronized (mSockets) {
+            return mConnectionCount;
+        }
+    }
+
+    List<String> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<>(mRequests);
+        }
+    }
+
+    void close() throws IOException {
+        mClosed = true;
+        mServerSocket.close();
+        synchronized (mSockets) {
+            for (Socket socket : mSockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private void accept() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (mSockets) {
+                mSockets.add(socket);
+                mConnectionCount++;
+            }
+            try {
+                // as CDNs do; with Nagle, a reused connection would wait
+                // for the client's delayed ACK between head and body
+                socket.setTcpNoDelay(true);
+            } catch (IOException ignored) {
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(socket);
+                    } catch (IOException ignored) {
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        try {
+                            socket.close();
+                        } catch (IOException ignored) {
+                        }
+                    }
+                }
+            }, "LoopbackServer connection");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) throws IOException, InterruptedException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        //noinspection StatementWithEmptyBody
+        while (serve(socket, reader)) {
+        }
+    }
+
+    // Answers one request. Returns true if the connection stays open for
+    // another.
+    private boolean serve(Socket socket, BufferedReader reader) throws IOException, InterruptedException {
+        String requestLine = reader.readLine();
+        if (requestLine == null)
+            return false;
+        String[] request = requestLine.split(" ");
+        String path = request.length > 1 ? request[1] : "/";
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = reader.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+        }
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        byte[] content;
+        synchronized (mContents) {
+            content = mContents.get(path);
+        }
+        if (content == null)
+            content = mContent;
+        String eTag = mETag;
+
+        int status = 200;
+        long start = 0;
+        long end = content.length - 1;
+        Matcher matcher = range != null ? RANGE.matcher(range) : null;
+        boolean unavailable;
+        synchronized (this) {
+            unavailable = mRequestsLeft == 0;
+            if (mRequestsLeft > 0)
+                mRequestsLeft--;
+        }
+        if (unavailable) {
+            status = 503;
+        } else if (matcher != null && matcher.matches() && mRanges && (ifRange == null || ifRange.equals(eTag))) {
+            status = 206;
+            start = Long.parseLong(matcher.group(1));
+            if (!matcher.group(2).isEmpty())
+                end = Math.min(Long.parseLong(matcher.group(2)), end);
+        }
+        synchronized (mRequests) {
+            mRequests.add((range != null ? range : "-") + " " + (ifRange != null ? ifRange : "-") + " " + status);
+        }
+
+        long latency = mLatencyInMillis;
+        if (latency > 0)
+            Thread.sleep(latency);
+        boolean keepAlive = mKeepAlive;
+        String version = keepAlive ? "HTTP/1.1 " : "HTTP/1.0 ";
+        OutputStream out = socket.getOutputStream();
+        StringBuilder response = new StringBuilder();
+        if (status == 503) {
+            response.append(version).append("503 Service Unavailable\r\nContent-Length: 0\r\n\r\n");
+            out.write(response.toString().getBytes("ISO-8859-1"));
+            out.flush();
+            return keepAlive;
+        }
+        long length = end - start + 1;
+        response.append(version).append(status == 206 ? "206 Partial Content\r\n" : "200 OK\r\n");
+        if (status == 206)
+            response.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(content.length).append("\r\n");
+        response.append("Content-Length: ").append(length).append("\r\n");
+        response.append("ETag: ").append(eTag).append("\r\n");
+        if (!keepAlive)
+            response.append("Connection: close\r\n");
+        response.append("\r\n");
+        out.write(response.toString().getBytes("ISO-8859-1"));
+
+        long send = length;
+        synchronized (this) {
+            if (mDropsLeft > 0) {
+                mDropsLeft--;
+                send = 1 + (long) (mRandom.nextDouble() * (length - 1));
+            }
+        }
+        boolean blackhole = mBlackholeAfter >= 0 && mBlackholeAfter < send;
+        if (blackhole)
+            send = mBlackholeAfter;
+        long transferStart = System.nanoTime();
+        for (long sent = 0; sent < send; ) {
+            int count = (int) Math.min(CHUNK_SIZE, send - sent);
+            out.write(content, (int) (start + sent), count);
+            out.flush();
+            sent += count;
+            long bytesPerSecond = mBytesPerSecond;
+            if (bytesPerSecond > 0) {
+                long due = transferStart + sent * 1000000000L / bytesPerSecond;
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+        }
+        out.flush();
+        // a dropped connection just closes early
+        if (blackhole) {
+            // the connection stays open, but nothing more comes
+            while (!mClosed && !socket.isClosed())
+                Thread.sleep(50);
+        }
+        return keepAlive && send == length;
+    }
+}
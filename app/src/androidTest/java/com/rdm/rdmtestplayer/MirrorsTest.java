@@ -0,0 +1,139 @@
+package com.rdm.rdmtestplayer;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Mirror failover against LoopbackServers: a blackholed transfer ends
+ * with a read timeout and resumes on the next mirror, and a failing
+ * mirror's circuit opens, lets one trial through once it cools down, and
+ * closes when that succeeds.
+ */
+public class MirrorsTest extends TestCase {
+    private static final int SIZE = 1024 * 1024;
+    private static final String ETAG = "\"v1\"";
+    private static final long COOLDOWN_IN_MILLIS = 200;
+
+    private final byte[] mContent = new byte[SIZE];
+    private String mHash;
+    private File mDownloadPath;
+    private LoopbackServer mFirst;
+    private LoopbackServer mSecond;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(1).nextBytes(mContent);
+        mHash = ContentHasher.toHexString(MessageDigest.getInstance("MD5").digest(mContent));
+        mDownloadPath = File.createTempFile("mirrors", null);
+        assertTrue(mDownloadPath.delete() && mDownloadPath.mkdirs());
+        Content.setDownloadPath(mDownloadPath.getPath());
+        mFirst = new LoopbackServer(mContent, ETAG, 1);
+        mSecond = new LoopbackServer(mContent, ETAG, 2);
+        Mirrors.setMinCooldown(COOLDOWN_IN_MILLIS * 1000000L);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFirst.close();
+        mSecond.close();
+        Mirrors.setMinCooldown(30000000000L);
+        deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testBlackholedTransferResumesOnNextMirror() throws IOException {
+        loadMirrors(mFirst, mSecond);
+        // measured as fast, so it's chosen first and its read timeout is
+        // the minimum instead of the default for unknown mirrors
+        String url = mFirst.getBaseUrl() + "clip.mp4";
+        Mirrors.responded(url, 200, 1000000L);
+        Mirrors.completed(url, SIZE, 10000000L);
+        int readTimeout = Mirrors.getReadTimeout(url);
+        mFirst.setBlackholeAfter(256 * 1024);
+
+        Content content = newContent();
+        long start = System.nanoTime();
+        content.download();
+        long elapsedInMillis = (System.nanoTime() - start) / 1000000L;
+        assertTrue(content.isUpToDate());
+        assertTrue("took " + elapsedInMillis + " ms", elapsedInMillis >= readTimeout);
+        assertTrue("took " + elapsedInMillis + " ms", elapsedInMillis < readTimeout + 5000);
+
+        assertEquals(1, mFirst.getRequests().size());
+        List<String> requests = mSecond.getRequests();
+        assertEquals(1, requests.size());
+        // another mirror's validators don't apply, so no If-Range
+        assertEquals("bytes=" + 256 * 1024 + "- - 206", requests.get(0));
+    }
+
+    public void testCircuitOpensHalfOpensAndCloses() throws Exception {
+        loadMirrors(mFirst);
+        String url = mFirst.getBaseUrl() + "clip.mp4";
+        mFirst.setRequestsLeft(0);
+        for (int i = 0; i < 3; i++) {
+            Content content = newContent();
+            content.download();
+            assertFalse(content.isUpToDate());
+        }
+        // open: nothing more reaches the mirror
+        assertEquals(3, mFirst.getRequests().size());
+        assertNull(Mirrors.choose());
+        newContent().download();
+        assertEquals(3, mFirst.getRequests().size());
+
+        // half open: one trial, which fails and opens it again
+        Thread.sleep(COOLDOWN_IN_MILLIS + 50);
+        assertNotNull(Mirrors.choose());
+        assertNull(Mirrors.choose());
+        assertFalse(ContentSync.getUrlBytes(url, new ByteArrayOutputStream(), SIZE));
+        assertNull(Mirrors.choose());
+
+        // the cooldown doubled; then a trial that succeeds closes it
+        Thread.sleep(2 * COOLDOWN_IN_MILLIS + 50);
+        mFirst.setRequestsLeft(-1);
+        assertNotNull(Mirrors.choose());
+        assertNull(Mirrors.choose());
+        assertTrue(ContentSync.getUrlBytes(url, new ByteArrayOutputStream(), SIZE));
+        assertNotNull(Mirrors.choose());
+        assertNotNull(Mirrors.choose());
+        Content content = newContent();
+        content.download();
+        assertTrue(content.isUpToDate());
+        assertEquals(6, mFirst.getRequests().size());
+    }
+
+    private void loadMirrors(LoopbackServer... servers) throws IOException {
+        FileWriter writer = new FileWriter(Content.getLocalMirrorsUrl());
+        try {
+            for (int i = 0; i < servers.length; i++) {
+                writer.write("mirror." + (i + 1) + "=" + servers[i].getBaseUrl() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        Mirrors.load(new File(Content.getLocalMirrorsUrl()));
+    }
+
+    private Content newContent() {
+        return new Content("clip.mp4", SIZE, mHash, "md5");
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
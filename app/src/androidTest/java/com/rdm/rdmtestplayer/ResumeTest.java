@@ -0,0 +1,174 @@
+package com.rdm.rdmtestplayer;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+/*
+ * Interrupted downloads against a LoopbackServer that drops connections
+ * at random offsets: they resume with Range and If-Range, start over when
+ * the validator or the server says so, and resume from the .validators
+ * file a killed process leaves behind.
+ */
+public class ResumeTest extends TestCase {
+    private static final int SIZE = 1024 * 1024;
+    private static final String ETAG = "\"v1\"";
+
+    private final byte[] mContent = new byte[SIZE];
+    private String mHash;
+    private File mDownloadPath;
+    private LoopbackServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        new Random(1).nextBytes(mContent);
+        mHash = ContentHasher.toHexString(MessageDigest.getInstance("MD5").digest(mContent));
+        mDownloadPath = File.createTempFile("resume", null);
+        assertTrue(mDownloadPath.delete() && mDownloadPath.mkdirs());
+        Content.setDownloadPath(mDownloadPath.getPath());
+        mServer = new LoopbackServer(mContent, ETAG, 2);
+        FileWriter writer = new FileWriter(Content.getLocalMirrorsUrl());
+        try {
+            writer.write("mirror.1=" + mServer.getBaseUrl() + "\n");
+        } finally {
+            writer.close();
+        }
+        Mirrors.load(new File(Content.getLocalMirrorsUrl()));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.close();
+        deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testResumesWithRange() throws IOException {
+        mServer.setDrops(2);
+        Content content = newContent();
+        content.download();
+        assertDownloaded(content);
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(3, requests.size());
+        assertEquals("- - 200", requests.get(0));
+        for (String request : requests.subList(1, requests.size())) {
+            assertTrue(request, request.startsWith("bytes="));
+            assertTrue(request, request.endsWith(" " + ETAG + " 206"));
+        }
+    }
+
+    public void testStartsOverWhenIfRangeDoesNotMatch() throws IOException {
+        interrupt();
+        // the same bytes, served under another ETag
+        mServer.setContent(mContent, "\"v2\"");
+        int before = mServer.getRequests().size();
+        Content content = newContent();
+        content.download();
+        assertDownloaded(content);
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(before + 1, requests.size());
+        assertTrue(requests.get(before), requests.get(before).startsWith("bytes="));
+        assertTrue(requests.get(before), requests.get(before).endsWith(" " + ETAG + " 200"));
+    }
+
+    public void testStartsOverWhenServerIgnoresRange() throws IOException {
+        mServer.setRanges(false);
+        mServer.setDrops(1);
+        Content content = newContent();
+        content.download();
+        assertDownloaded(content);
+
+        List<String> requests = mServer.getRequests();
+        assertEquals(2, requests.size());
+        assertTrue(requests.get(1), requests.get(1).startsWith("bytes="));
+        assertTrue(requests.get(1), requests.get(1).endsWith(" 200"));
+    }
+
+    public void testResumesFromValidatorsAfterKill() throws IOException {
+        long written = interrupt();
+        // a process killed at that point leaves the file preallocated, so
+        // its length says nothing
+        File partFile = new File(newContent().mLocalPath + Content.PART_SUFFIX);
+        RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+        try {
+            file.setLength(SIZE);
+        } finally {
+            file.close();
+        }
+
+        int before = mServer.getRequests().size();
+        Content content = newContent();
+        content.download();
+        assertDownloaded(content);
+        List<String> requests = mServer.getRequests();
+        assertEquals(before + 1, requests.size());
+        assertEquals("bytes=" + written + "- " + ETAG + " 206", requests.get(before));
+        assertFalse(new File(partFile.getPath() + ContentSync.VALIDATORS_SUFFIX).exists());
+    }
+
+    // Drops the connection of a download, and answers nothing more until
+    // it gives up. Returns how much of it the .validators file says was
+    // written.
+    private long interrupt() throws IOException {
+        mServer.setDrops(1);
+        mServer.setRequestsLeft(1);
+        Content content = newContent();
+        content.download();
+        assertFalse(content.isUpToDate());
+        mServer.setRequestsLeft(-1);
+
+        File validatorsFile = new File(content.mLocalPath + Content.PART_SUFFIX + ContentSync.VALIDATORS_SUFFIX);
+        assertTrue(validatorsFile.isFile());
+        Properties validators = new Properties();
+        ContentSync.loadProperties(validators, validatorsFile);
+        assertEquals(ETAG, validators.getProperty("ETag"));
+        long written = Long.parseLong(validators.getProperty("Length"));
+        assertTrue(written > 0 && written < SIZE);
+        return written;
+    }
+
+    private Content newContent() {
+        return new Content("media/clip.mp4", SIZE, mHash, "md5");
+    }
+
+    private void assertDownloaded(Content content) throws IOException {
+        assertTrue(content.isUpToDate());
+        File file = new File(content.mLocalPath);
+        assertEquals(SIZE, file.length());
+        byte[] bytes = new byte[SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int count = 0;
+            int bytesRead;
+            while (count < SIZE && (bytesRead = in.read(bytes, count, SIZE - count)) > 0)
+                count += bytesRead;
+        } finally {
+            in.close();
+        }
+        assertTrue(Arrays.equals(mContent, bytes));
+        assertFalse(new File(content.mLocalPath + Content.PART_SUFFIX).exists());
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+}
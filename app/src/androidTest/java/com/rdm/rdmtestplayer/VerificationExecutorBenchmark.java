@@ -0,0 +1,87 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * How VerificationExecutor scales with its thread count: md5 verification
+ * of many small files and of a few huge ones, 2 GB each, at 1, 2, 4 and 8
+ * threads, best of RUNS. It only shows scaling on a device with that
+ * many cores; availableProcessors() is logged alongside.
+ */
+@LargeTest
+public class VerificationExecutorBenchmark extends TestCase {
+    private static final String TAG = "VerificationExecutorBenchmark";
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+    private static final int RUNS = 3;
+
+    private File mDownloadPath;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDownloadPath = Benchmarks.createTempDir("verification");
+        Content.setDownloadPath(mDownloadPath.getPath());
+        ContentSync.setVerificationLedger(null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        VerificationExecutor.setThreadCount(0);
+        Benchmarks.deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testManySmallFiles() throws Exception {
+        measure(createLibrary(2000, 1024 * 1024));
+    }
+
+    public void testFewHugeFiles() throws Exception {
+        measure(createLibrary(4, 512 * 1024 * 1024));
+    }
+
+    // Returns the hashes of the objects
+    private List<String> createLibrary(int files, long fileSize) throws Exception {
+        List<String> hashes = new ArrayList<>();
+        File file = new File(mDownloadPath, "new");
+        for (int i = 0; i < files; i++) {
+            Benchmarks.writeRandomFile(file, fileSize, i);
+            String hash = ContentHasher.toHexString(ContentHasher.hash(file, ContentDigest.MD5));
+            File object = ContentStore.getObjectFile(ContentDigest.MD5, hash);
+            assertTrue(object.getParentFile().mkdirs() || object.getParentFile().isDirectory());
+            assertTrue(file.renameTo(object));
+            hashes.add(hash);
+        }
+        return hashes;
+    }
+
+    private void measure(List<String> hashes) throws Exception {
+        long fileSize = ContentStore.getObjectFile(ContentDigest.MD5, hashes.get(0)).length();
+        long totalBytes = fileSize * hashes.size();
+        Log.i(TAG, String.format(Locale.US, "%d files of %d MB, %d processors", hashes.size(),
+                fileSize >> 20, Runtime.getRuntime().availableProcessors()));
+        for (int threadCount : THREAD_COUNTS) {
+            VerificationExecutor.setThreadCount(threadCount);
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < RUNS; run++) {
+                List<Content> contentList = new ArrayList<>();
+                for (int i = 0; i < hashes.size(); i++) {
+                    contentList.add(new Content("clip" + i + ".mp4", fileSize, hashes.get(i), ContentDigest.MD5));
+                }
+                long start = System.nanoTime();
+                assertTrue(VerificationExecutor.findOutOfDate(contentList).isEmpty());
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            Log.i(TAG, String.format(Locale.US, "%d threads %8.0f ms  %5.0f MB/s", threadCount,
+                    Benchmarks.toMillis(best), Benchmarks.toMegabytesPerSecond(totalBytes, best)));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.rdm.rdmtestplayer;
+
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Start-up verification of a library of FILES md5 objects of FILE_SIZE
+ * each (20 GB), on one thread: without a verification ledger, with deep
+ * verify (which hashes everything and writes the ledger), trusting the
+ * ledger, and after one file was touched. With less than twice that much
+ * space free, the library has as many files as fit in half of it.
+ */
+@LargeTest
+public class VerificationLedgerBenchmark extends TestCase {
+    private static final String TAG = "VerificationLedgerBenchmark";
+
+    private static final int FILES = 200;
+    private static final long FILE_SIZE = 100L * 1024 * 1024;
+
+    private File mDownloadPath;
+    private final List<String> mHashes = new ArrayList<>();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDownloadPath = Benchmarks.createTempDir("ledger");
+        Content.setDownloadPath(mDownloadPath.getPath());
+        int files = (int) Math.min(FILES, mDownloadPath.getUsableSpace() / 2 / FILE_SIZE);
+        File file = new File(mDownloadPath, "new");
+        for (int i = 0; i < files; i++) {
+            Benchmarks.writeRandomFile(file, FILE_SIZE, i);
+            String hash = ContentHasher.toHexString(ContentHasher.hash(file, ContentDigest.MD5));
+            File object = ContentStore.getObjectFile(ContentDigest.MD5, hash);
+            assertTrue(object.getParentFile().mkdirs() || object.getParentFile().isDirectory());
+            assertTrue(file.renameTo(object));
+            mHashes.add(hash);
+        }
+        VerificationExecutor.setThreadCount(1);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        VerificationExecutor.setThreadCount(0);
+        ContentSync.setVerificationLedger(null);
+        Benchmarks.deleteTree(mDownloadPath);
+        super.tearDown();
+    }
+
+    public void testLedgerAgainstHashing() throws Exception {
+        Log.i(TAG, String.format(Locale.US, "%d files, %d MB", mHashes.size(),
+                mHashes.size() * FILE_SIZE >> 20));
+        measure("no ledger", false, false);
+        measure("no ledger", false, false);
+        measure("deep verify", true, true);
+        measure("ledger", true, false);
+        measure("ledger", true, false);
+        measure("ledger", true, false);
+        File touched = ContentStore.getObjectFile(ContentDigest.MD5, mHashes.get(0));
+        assertTrue(touched.setLastModified(touched.lastModified() + 1000));
+        measure("touched", true, false);
+        measure("ledger", true, false);
+    }
+
+    // As sync() does it, from loading the ledger to saving it
+    private void measure(String name, boolean ledger, boolean deepVerify) throws Exception {
+        List<Content> contentList = new ArrayList<>();
+        for (int i = 0; i < mHashes.size(); i++) {
+            contentList.add(new Content("clip" + i + ".mp4", FILE_SIZE, mHashes.get(i), ContentDigest.MD5));
+        }
+        long start = System.nanoTime();
+        VerificationLedger verificationLedger = null;
+        if (ledger) {
+            verificationLedger = VerificationLedger.load(new File(Content.getLocalVerificationLedgerUrl()));
+            verificationLedger.setDeepVerify(deepVerify);
+        }
+        ContentSync.setVerificationLedger(verificationLedger);
+        List<Content> outOfDate = VerificationExecutor.findOutOfDate(contentList);
+        if (verificationLedger != null)
+            verificationLedger.save();
+        long elapsed = System.nanoTime() - start;
+        assertTrue(outOfDate.isEmpty());
+        Log.i(TAG, String.format(Locale.US, "%-11s %9.1f ms", name, Benchmarks.toMillis(elapsed)));
+    }
+}
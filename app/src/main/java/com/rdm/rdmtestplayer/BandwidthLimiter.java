@@ -0,0 +1,199 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Properties;
+
+/*
+ * Shapes sync traffic so it leaves room on the store's uplink. Every
+ * download shares one global rate, and each connection can have its own
+ * cap on top. The global rate follows a daily schedule of time windows,
+ * and is capped further while the network is metered. All rates are in
+ * bytes per second; 0 is unlimited.
+ *
+ * The schedule can be set in code or in the "bandwidth" file in the
+ * download path. Sync loads the file, replacing whatever was set, and
+ * without it runs unlimited:
+ *     default=250000
+ *     per_connection=0
+ *     metered=62500
+ *     window.1=01:00-05:00 0
+ *     window.2=12:00-13:00 125000
+ * The first window that contains the local time wins; a window may wrap
+ * past midnight. Outside all windows the default applies.
+ *
+ * The schedule is looked at no more than once a second, and with no
+ * limits in effect, acquire() is a couple of volatile reads.
+ */
+class BandwidthLimiter {
+    private static final String TAG = "BandwidthLimiter";
+
+    private static final long CHECK_INTERVAL_IN_NANOS = 1000000000L;
+
+    private static final String DEFAULT = "default";
+    private static final String PER_CONNECTION = "per_connection";
+    private static final String METERED = "metered";
+    private static final String WINDOW = "window.";
+
+    private static class Window {
+        final int mStartMinute;
+        final int mEndMinute;
+        final long mBytesPerSecond;
+
+        Window(int startMinute, int endMinute, long bytesPerSecond) {
+            mStartMinute = startMinute;
+            mEndMinute = endMinute;
+            mBytesPerSecond = bytesPerSecond;
+        }
+
+        boolean contains(int minute) {
+            if (mStartMinute <= mEndMinute)
+                return minute >= mStartMinute && minute < mEndMinute;
+            return minute >= mStartMinute || minute < mEndMinute;
+        }
+    }
+
+    private static final TokenBucket sGlobal = new TokenBucket(0);
+    private static final List<Window> sWindows = new ArrayList<>();
+    private static long sDefaultBytesPerSecond = 0;
+    private static volatile long sPerConnectionBytesPerSecond = 0;
+    private static long sMeteredBytesPerSecond = 0;
+    private static boolean sMetered = false;
+    private static volatile long sNextCheck = 0;
+
+    public static synchronized void setDefaultBytesPerSecond(long bytesPerSecond) {
+        sDefaultBytesPerSecond = bytesPerSecond;
+        sNextCheck = 0;
+    }
+
+    public static void setPerConnectionBytesPerSecond(long bytesPerSecond) {
+        sPerConnectionBytesPerSecond = bytesPerSecond;
+    }
+
+    // Minutes since local midnight; end is exclusive
+    public static synchronized void addWindow(int startMinute, int endMinute, long bytesPerSecond) {
+        sWindows.add(new Window(startMinute, endMinute, bytesPerSecond));
+        sNextCheck = 0;
+    }
+
+    public static synchronized void clearWindows() {
+        sWindows.clear();
+        sNextCheck = 0;
+    }
+
+    // The hook for metered links: while metered, the global rate is at
+    // most meteredBytesPerSecond, if that is set
+    public static synchronized void setMetered(boolean metered) {
+        sMetered = metered;
+        sNextCheck = 0;
+    }
+
+    public static synchronized void setMeteredBytesPerSecond(long bytesPerSecond) {
+        sMeteredBytesPerSecond = bytesPerSecond;
+        sNextCheck = 0;
+    }
+
+    // Replaces the schedule with the one in file. A missing file means no
+    // schedule, so deleting it lifts the limits at the next sync. Invalid
+    // entries are skipped.
+    public static synchronized void load(File file) {
+        Properties properties = new Properties();
+        if (file.isFile())
+            ContentSync.loadProperties(properties, file);
+        sDefaultBytesPerSecond = parseRate(properties.getProperty(DEFAULT));
+        sPerConnectionBytesPerSecond = parseRate(properties.getProperty(PER_CONNECTION));
+        sMeteredBytesPerSecond = parseRate(properties.getProperty(METERED));
+        sWindows.clear();
+        for (int i = 1; properties.getProperty(WINDOW + i) != null; i++) {
+            Window window = parseWindow(properties.getProperty(WINDOW + i));
+            if (window != null)
+                sWindows.add(window);
+            else
+                Log.e(TAG, "Invalid window: " + properties.getProperty(WINDOW + i));
+        }
+        sNextCheck = 0;
+    }
+
+    // A cap for one connection, or null if there is none
+    public static TokenBucket newConnectionBucket() {
+        long bytesPerSecond = sPerConnectionBytesPerSecond;
+        return bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+    }
+
+    // Blocks until count more bytes may be read on connection, which is
+    // from newConnectionBucket()
+    public static void acquire(TokenBucket connection, int count) throws InterruptedIOException {
+        if (System.nanoTime() - sNextCheck >= 0)
+            update();
+        sGlobal.acquire(count);
+        if (connection != null)
+            connection.acquire(count);
+    }
+
+    public static long getBytesPerSecond() {
+        return sGlobal.getRate();
+    }
+
+    private static synchronized void update() {
+        Calendar calendar = Calendar.getInstance();
+        int minute = calendar.get(Calendar.HOUR_OF_DAY) * 60 + calendar.get(Calendar.MINUTE);
+        long bytesPerSecond = sDefaultBytesPerSecond;
+        for (Window window : sWindows) {
+            if (window.contains(minute)) {
+                bytesPerSecond = window.mBytesPerSecond;
+                break;
+            }
+        }
+        if (sMetered && sMeteredBytesPerSecond > 0
+                && (bytesPerSecond <= 0 || bytesPerSecond > sMeteredBytesPerSecond))
+            bytesPerSecond = sMeteredBytesPerSecond;
+        if (bytesPerSecond != sGlobal.getRate())
+            Log.i(TAG, "Sync rate " + (bytesPerSecond > 0 ? bytesPerSecond + " B/s" : "unlimited"));
+        sGlobal.setRate(bytesPerSecond);
+        sNextCheck = System.nanoTime() + CHECK_INTERVAL_IN_NANOS;
+    }
+
+    private static long parseRate(String rate) {
+        if (rate == null)
+            return 0;
+        try {
+            return Math.max(Long.parseLong(rate.trim()), 0);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Invalid rate: " + rate);
+            return 0;
+        }
+    }
+
+    // "HH:MM-HH:MM rate", or null
+    private static Window parseWindow(String window) {
+        String[] parts = window.trim().split("[- ]+");
+        if (parts.length != 3)
+            return null;
+        int start = parseMinute(parts[0]);
+        int end = parseMinute(parts[1]);
+        if (start < 0 || end < 0)
+            return null;
+        return new Window(start, end, parseRate(parts[2]));
+    }
+
+    // Minutes since midnight of "HH:MM", or -1
+    private static int parseMinute(String time) {
+        int colon = time.indexOf(':');
+        if (colon < 0)
+            return -1;
+        try {
+            int hours = Integer.parseInt(time.substring(0, colon));
+            int minutes = Integer.parseInt(time.substring(colon + 1));
+            if (hours < 0 || hours > 24 || minutes < 0 || minutes > 59)
+                return -1;
+            return Math.min(hours * 60 + minutes, 24 * 60);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
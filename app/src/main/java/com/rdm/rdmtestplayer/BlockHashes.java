@@ -0,0 +1,169 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+ * Per-block hashes of one file, from the optional content_list.blocks
+ * sidecar. They locate corruption within a file, so only the bad blocks
+ * need to be downloaded again.
+ *
+ * Format, one file per line:
+ *     filepath relative to base url,block size in bytes,hash algorithm,hashes
+ * where hashes are the hex hashes of consecutive blocks, separated by
+ * spaces. The last block may be short.
+ *
+ * A file may have a second line with "rsum" for the algorithm, and the
+ * rolling checksums of its blocks (see DeltaDownload.rollingSum()) as 8
+ * hex digits each. With them, a changed file can be patched from its
+ * previous version. Parsers that predate them skip the line, since rsum
+ * isn't a hash algorithm.
+ */
+class BlockHashes {
+    private static final String TAG = "BlockHashes";
+
+    private static final String ROLLING_SUM = "rsum";
+
+    private final int mBlockSize;
+    private final String mHashAlgorithm;
+    private final String[] mHashes;
+    // null if the sidecar has none
+    private int[] mRollingSums;
+
+    private BlockHashes(int blockSize, String hashAlgorithm, String[] hashes) {
+        mBlockSize = blockSize;
+        mHashAlgorithm = hashAlgorithm;
+        mHashes = hashes;
+    }
+
+    // Keyed by file path relative to the base url. Invalid lines are skipped.
+    public static Map<String, BlockHashes> parse(File file) {
+        Map<String, BlockHashes> blockHashes = new HashMap<>();
+        Map<String, BlockHashes> rollingSums = new HashMap<>();
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty())
+                    continue;
+                int comma1 = line.indexOf(',');
+                int comma2 = line.indexOf(',', comma1 + 1);
+                int comma3 = line.indexOf(',', comma2 + 1);
+                try {
+                    if (comma1 < 0 || comma2 < 0 || comma3 < 0)
+                        throw new IllegalArgumentException("Invalid block hash line: " + line);
+                    int blockSize = Integer.parseInt(line.substring(comma1 + 1, comma2));
+                    String hashAlgorithm = line.substring(comma2 + 1, comma3).trim().toLowerCase(Locale.US);
+                    String hashes = line.substring(comma3 + 1).trim();
+                    boolean rolling = hashAlgorithm.equals(ROLLING_SUM);
+                    if (blockSize <= 0 || !(rolling || ContentDigest.isSupported(hashAlgorithm)) || hashes.isEmpty())
+                        throw new IllegalArgumentException("Invalid block hash line: " + line);
+                    (rolling ? rollingSums : blockHashes).put(line.substring(0, comma1),
+                            new BlockHashes(blockSize, hashAlgorithm, hashes.split(" +")));
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "", e);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Map.Entry<String, BlockHashes> entry : rollingSums.entrySet()) {
+            BlockHashes hashes = blockHashes.get(entry.getKey());
+            BlockHashes sums = entry.getValue();
+            if (hashes == null || hashes.mBlockSize != sums.mBlockSize || hashes.mHashes.length != sums.mHashes.length) {
+                Log.e(TAG, "Rolling checksums don't fit the block hashes: " + entry.getKey());
+                continue;
+            }
+            try {
+                hashes.mRollingSums = new int[sums.mHashes.length];
+                for (int i = 0; i < sums.mHashes.length; i++) {
+                    hashes.mRollingSums[i] = (int) Long.parseLong(sums.mHashes[i], 16);
+                }
+            } catch (NumberFormatException e) {
+                Log.e(TAG, "Invalid rolling checksums: " + entry.getKey());
+                hashes.mRollingSums = null;
+            }
+        }
+        return blockHashes;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    public int getBlockCount() {
+        return mHashes.length;
+    }
+
+    public String getHashAlgorithm() {
+        return mHashAlgorithm;
+    }
+
+    public String getHash(int block) {
+        return mHashes[block];
+    }
+
+    public boolean hasRollingSums() {
+        return mRollingSums != null;
+    }
+
+    public int getRollingSum(int block) {
+        return mRollingSums[block];
+    }
+
+    // False if the hashes were made for a file of a different size
+    public boolean fits(long sizeInBytes) {
+        return (sizeInBytes + mBlockSize - 1) / mBlockSize == mHashes.length;
+    }
+
+    // Hashes the blocks of file concurrently and returns the indexes of
+    // those that don't match
+    public List<Integer> findBadBlocks(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            List<Callable<Boolean>> tasks = new ArrayList<>(mHashes.length);
+            for (int i = 0; i < mHashes.length; i++) {
+                final int block = i;
+                tasks.add(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException, NoSuchAlgorithmException {
+                        byte[] hash = ContentHasher.hash(channel, (long) block * mBlockSize,
+                                mBlockSize, mHashAlgorithm);
+                        return ContentHasher.toHexString(hash).equalsIgnoreCase(mHashes[block]);
+                    }
+                });
+            }
+            boolean[] good = VerificationExecutor.invokeAll(tasks);
+            List<Integer> badBlocks = new ArrayList<>();
+            for (int i = 0; i < good.length; i++) {
+                if (!good[i])
+                    badBlocks.add(i);
+            }
+            return badBlocks;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.rdm.rdmtestplayer;
+
+/*
+ * Library methods that are newer than the minimum SDK version.
+ */
+final class Compat {
+    private Compat() {
+    }
+
+    // Long.compare() needs API 19
+    static int compare(long lhs, long rhs) {
+        return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+    }
+}
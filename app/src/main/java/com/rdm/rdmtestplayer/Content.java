@@ -6,17 +6,19 @@ import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.DigestInputStream;
-import java.security.MessageDigest;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Properties;
 
 /*
  * A CSV formatted content list is loaded from an HTTP url. Then,
  * content is synced locally based on the information in the list.
- * Format:
- *     filepath relative to base url,size in bytes,md5 hash
+ * See ContentListParser for the format.
  */
 class Content {
     private static final String TAG = "Content";
@@ -24,15 +26,27 @@ class Content {
     private static final String DEFAULT_DOWNLOAD_PATH = new File(Environment.getExternalStorageDirectory(), "media").getPath();
     private static final String BASE_URL = "http://3gfp.com/i/rdm_test_media/";
     private static final String CONTENT_LIST = "content_list";
-    private static final int NUM_CONTENT_LINE_PARTS = 3;
+    private static final String BLOCK_HASHES = CONTENT_LIST + ".blocks";
+
+    // Past this share of bad blocks, a damaged file is downloaded whole
+    private static final double MAX_REPAIR_FRACTION = 0.5;
+    // Downloads go to a file with this suffix and are renamed when verified
+    static final String PART_SUFFIX = ".part";
+    // Attempts per download, as long as each one gets further
+    private static final int MAX_DOWNLOAD_ATTEMPTS = 5;
 
     private static String sDownloadPath = DEFAULT_DOWNLOAD_PATH;
 
-    private boolean mUpToDate = false;
+    // Written by verification threads
+    private volatile boolean mUpToDate = false;
+    private String mFileName;
     private String mRemotePath;
     String mLocalPath;
+    // Object of the previous version, if this entry changed; see ContentDelta
+    String mSeedPath;
     private long mSizeInBytes;
-    private String mMd5String;
+    private String mHashString;
+    private String mHashAlgorithm;
 
     public static String getDownloadPath() {
         return sDownloadPath;
@@ -45,29 +59,116 @@ class Content {
             sDownloadPath = downloadPath;
     }
 
-    public static String getContentListUrl() {
-        return BASE_URL + CONTENT_LIST;
+    // Mirrors, if configured, stand in for it; see Mirrors
+    public static String getDefaultBaseUrl() {
+        return BASE_URL;
+    }
+
+    // Relative to a mirror's base url, like the paths below
+    public static String getContentListPath() {
+        return CONTENT_LIST;
     }
 
     public static String getLocalContentListUrl() {
         return new File(getDownloadPath(), CONTENT_LIST).getPath();
     }
 
-    public Content(final String contentLine) throws IllegalArgumentException {
-        final String[] parts = contentLine.split(",");
-        if (parts.length < Content.NUM_CONTENT_LINE_PARTS)
-            throw new IllegalArgumentException("Invalid content line: " + contentLine);
+    public static String getBlockHashesPath() {
+        return BLOCK_HASHES;
+    }
+
+    public static String getLocalBlockHashesUrl() {
+        return new File(getDownloadPath(), BLOCK_HASHES).getPath();
+    }
+
+    public static String getLocalContentIndexUrl() {
+        return new File(getDownloadPath(), CONTENT_LIST + ".idx").getPath();
+    }
+
+    public static String getLocalVerificationLedgerUrl() {
+        return new File(getDownloadPath(), CONTENT_LIST + ".verified").getPath();
+    }
+
+    // If present, the next sync ignores the verification ledger
+    public static String getLocalDeepVerifyUrl() {
+        return new File(getDownloadPath(), "deep_verify").getPath();
+    }
+
+    // If present, sync uses lazy verification; see ContentSync
+    public static String getLocalLazyVerifyUrl() {
+        return new File(getDownloadPath(), "lazy_verify").getPath();
+    }
+
+    // Bandwidth schedule for sync, if present; see BandwidthLimiter
+    public static String getLocalBandwidthUrl() {
+        return new File(getDownloadPath(), "bandwidth").getPath();
+    }
+
+    // Mirrors to sync from, if present; see Mirrors
+    public static String getLocalMirrorsUrl() {
+        return new File(getDownloadPath(), "mirrors").getPath();
+    }
+
+    // Where fileName was kept before ContentStore
+    public static File getLocalFile(String fileName) {
+        return new File(getDownloadPath(), fileName);
+    }
+
+    // A listed file name must stay under the download path: relative, and
+    // without ".." segments
+    public static boolean isValidFileName(String fileName) {
+        if (fileName.isEmpty() || fileName.startsWith("/") || fileName.indexOf('\0') >= 0)
+            return false;
+        for (String segment : fileName.split("/")) {
+            if (segment.equals(".."))
+                return false;
+        }
+        return true;
+    }
 
-        final String fileName = parts[0];
-        mRemotePath = BASE_URL + Uri.encode(fileName, "/");
-        mLocalPath = new File(getDownloadPath(), fileName).getPath();
-        mSizeInBytes = Long.valueOf(parts[1]);
-        mMd5String = parts[2];
+    // Whether file resolves, symbolic links and all, to somewhere under
+    // the download path
+    public static boolean isUnderDownloadPath(File file) {
+        try {
+            String root = new File(getDownloadPath()).getCanonicalPath() + File.separator;
+            return file.getCanonicalPath().startsWith(root);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public Content(final String fileName, long sizeInBytes, final String hashString,
+                   final String hashAlgorithm) {
+        mFileName = fileName;
+        // relative to whichever mirror it comes from
+        mRemotePath = Uri.encode(fileName, "/");
+        // Stored by hash; see ContentStore
+        mLocalPath = ContentStore.getObjectFile(hashAlgorithm, hashString).getPath();
+        mSizeInBytes = sizeInBytes;
+        mHashString = hashString;
+        mHashAlgorithm = hashAlgorithm;
 
 //        Log.i(TAG, "New: " + mRemotePath
 //                + "\n    " + mLocalPath
 //                + "\n    " + mSizeInBytes
-//                + "\n    " + mMd5String);
+//                + "\n    " + mHashAlgorithm + " " + mHashString);
+    }
+
+    // Path relative to the base url, as listed in the content list
+    public String getFileName() {
+        return mFileName;
+    }
+
+    public long getSizeInBytes() {
+        return mSizeInBytes;
+    }
+
+    public String getExpectedHashString() {
+        return mHashString;
+    }
+
+    public String getHashAlgorithm() {
+        return mHashAlgorithm;
     }
 
     public boolean needsUpdate() {
@@ -79,64 +180,361 @@ class Content {
             return true;
         if (file.length() != mSizeInBytes)
             return true;
-        if (!getMd5String(file).equals(mMd5String))
-            return true;
+        VerificationLedger ledger = ContentSync.getVerificationLedger();
+        if (ledger == null || !ledger.isVerified(file, mHashAlgorithm, mHashString)) {
+            if (!getHashString(file, mHashAlgorithm).equalsIgnoreCase(mHashString))
+                return true;
+            if (ledger != null)
+                ledger.record(file, mHashAlgorithm, mHashString);
+        }
 
         mUpToDate = true;
         return false;
     }
 
+    public boolean hasExpectedSize() {
+        File file = new File(mLocalPath);
+        return file.isFile() && file.length() == mSizeInBytes;
+    }
+
+    // Last known status, without checking the file
+    public boolean isUpToDate() {
+        return mUpToDate;
+    }
+
+    // For content found to be damaged after it was verified
+    public void invalidate() {
+        mUpToDate = false;
+        VerificationLedger ledger = ContentSync.getVerificationLedger();
+        if (ledger != null) {
+            ledger.remove(new File(mLocalPath));
+            ledger.save();
+        }
+    }
+
+    // Cheap check for content that hasn't changed since it was last
+    // synced: the file is trusted if it's there, has the right size and
+    // the verification ledger doesn't know it to have changed since it was
+    // verified. Returns the resulting up-to-date status.
+    public boolean assumeUpToDateIfPresent() {
+        if (!mUpToDate)
+            mUpToDate = isPresent(new File(mLocalPath), mSizeInBytes, mHashAlgorithm, mHashString);
+        return mUpToDate;
+    }
+
+    // The check assumeUpToDateIfPresent() makes, for content that may not
+    // have been created; see ContentIndex.ContentList
+    static boolean isPresent(File file, long sizeInBytes, String hashAlgorithm, String hashString) {
+        VerificationLedger ledger = ContentSync.getVerificationLedger();
+        return file.isFile() && file.length() == sizeInBytes
+                && (ledger == null || !ledger.hasEntry(file)
+                    || ledger.isVerified(file, hashAlgorithm, hashString));
+    }
+
+    // How much of the download to partFile a resumed download keeps; see
+    // PartFile.getResumeOffset()
+    static long getResumeOffset(File partFile) {
+        return new PartFile(partFile, 0, null).getResumeOffset();
+    }
+
     public void sync() throws IOException {
         if (needsUpdate()) {
             download();
         }
     }
 
-    private void download() throws IOException {
+    // Downloads unconditionally. Use sync() unless the content is already
+    // known to need an update.
+    //
+    // The content is hashed as it's written, so it's verified the moment
+    // the last byte lands, without reading it back. It's written to a
+    // .part file, which replaces the local copy only once verified.
+    void download() throws IOException {
+        mUpToDate = false;
+        if (repair())
+            return;
         File file = new File(mLocalPath);
         //noinspection ResultOfMethodCallIgnored
         file.getParentFile().mkdirs();
-        if (!ContentSync.getUrlBytes(mRemotePath, new FileOutputStream(file), mSizeInBytes)) {
-            Log.e(TAG, "Failed to download: " + mRemotePath);
+        PartFile partFile;
+        try {
+            partFile = new PartFile(new File(mLocalPath + PART_SUFFIX), mSizeInBytes,
+                    ContentHasher.getDigest(mHashAlgorithm));
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "", e);
+            return;
+        }
+        // Nothing is written unless the rest of it fits; see StorageQuota
+        if (!StorageQuota.reserve(this)) {
+            Log.e(TAG, "Not enough space to download: " + mRemotePath);
+            return;
+        }
+        try {
+            download(partFile, file);
+        } finally {
+            StorageQuota.release(this);
         }
-        // Update up-to-date status
-        needsUpdate();
     }
 
-    private static String getMd5String(File file) {
-        byte[] hash = getMd5(file);
-        String result = "";
-        for (byte hashByte : hash != null ? hash : new byte[0]) {
-            result += Integer.toString((hashByte & 0xff) + 0x100, 16).substring(1);
+    private void download(PartFile partFile, File file) throws IOException {
+        String hashString = downloadFromPeers(partFile);
+        if (hashString == null && mSeedPath != null && partFile.getResumeOffset() == 0)
+            hashString = downloadDelta(partFile);
+        // Large files come over several connections, unless there's a
+        // single-connection download to resume
+        int segmentCount = SegmentedDownload.getSegmentCount(mSizeInBytes);
+        if (hashString == null && segmentCount > 1 && partFile.getResumeOffset() == 0)
+            hashString = downloadSegmented(partFile, segmentCount);
+        if (hashString == null) {
+            // An interrupted download is resumed, here or in a later sync,
+            // from the best mirror at the time. Each mirror gets a chance
+            // to make progress before giving up.
+            int attemptsWithoutProgress = 0;
+            for (int attempt = 1; ; attempt++) {
+                Mirrors.Mirror mirror = Mirrors.choose();
+                if (mirror == null) {
+                    Log.e(TAG, "No mirror available: " + mRemotePath);
+                    return;
+                }
+                long offset = partFile.getResumeOffset();
+                Properties validators = partFile.mValidators;
+                // Another mirror's validators mean nothing here; the digest
+                // check below covers bytes from different mirrors
+                if (!mirror.mBaseUrl.equals(validators.getProperty(PartFile.MIRROR)))
+                    validators = new Properties();
+                partFile.mMirror = mirror.mBaseUrl;
+                if (ContentSync.resumeUrlBytes(mirror.getUrl(mRemotePath), partFile, offset, mSizeInBytes, validators))
+                    break;
+                attemptsWithoutProgress = partFile.mFile.length() > offset ? 0 : attemptsWithoutProgress + 1;
+                if (attempt == MAX_DOWNLOAD_ATTEMPTS || attemptsWithoutProgress >= Mirrors.size()) {
+                    Log.e(TAG, "Failed to download: " + mRemotePath);
+                    return;
+                }
+                Log.w(TAG, "Interrupted at " + partFile.mFile.length() + " bytes, resuming: " + mRemotePath);
+            }
+            hashString = ContentHasher.toHexString(partFile.mDigest.digest());
+        }
+
+        if (partFile.mFile.length() != mSizeInBytes || !hashString.equalsIgnoreCase(mHashString)) {
+            Log.e(TAG, "Downloaded content doesn't match: " + mRemotePath);
+            partFile.delete();
+            return;
         }
-        //Log.i(TAG, "MD5: " + file.getName() + "  " + result);
-        return result;
+        if (!partFile.mFile.renameTo(file)) {
+            Log.e(TAG, "Failed to rename: " + partFile.mFile);
+            return;
+        }
+        partFile.delete();
+
+        mUpToDate = true;
+        VerificationLedger ledger = ContentSync.getVerificationLedger();
+        if (ledger != null)
+            ledger.record(file, mHashAlgorithm, mHashString);
     }
 
-    private static byte[] getMd5(File file) {
-        MessageDigest md = null;
-        DigestInputStream dis = null;
-        try {
-            md = MessageDigest.getInstance("MD5");
-            dis = new DigestInputStream(new FileInputStream(file), md);
-            /* Read stream to EOF as normal... */
-            byte[] buffer = new byte[32 * 1024];
-            int bytesRead = 0;
-            while (bytesRead != -1) {
-                bytesRead = dis.read(buffer);
+    // Gets the object from a player on the LAN, if one has it, and waits
+    // while one is downloading it itself, up to BUSY_WAIT_IN_NANOS.
+    // Returns its hash, which is the expected one, or null if no peer
+    // could help. See PeerSharing.
+    private String downloadFromPeers(PartFile partFile) throws IOException {
+        long deadline = System.nanoTime() + PeerSharing.BUSY_WAIT_IN_NANOS;
+        for (;;) {
+            boolean busy = false;
+            for (String url : PeerSharing.getObjectUrls(mHashAlgorithm, mHashString)) {
+                int status = PeerSharing.probe(url);
+                busy |= status == PeerSharing.BUSY;
+                if (status != PeerSharing.AVAILABLE)
+                    continue;
+                // an interrupted download from one peer resumes from any other
+                if (!ContentSync.resumeUrlBytes(url, partFile, partFile.getResumeOffset(),
+                        mSizeInBytes, partFile.mValidators)) {
+                    PeerSharing.reportFailure(url, false);
+                    continue;
+                }
+                String hashString = ContentHasher.toHexString(partFile.mDigest.digest());
+                if (partFile.mFile.length() == mSizeInBytes && hashString.equalsIgnoreCase(mHashString)) {
+                    Log.i(TAG, "Downloaded from peer: " + url);
+                    return hashString;
+                }
+                PeerSharing.reportFailure(url, true);
+                partFile.delete();
             }
-        } catch (NoSuchAlgorithmException | IOException e) {
-            Log.e(TAG, "", e);
+            if (!busy)
+                return null;
+            if (System.nanoTime() - deadline >= 0) {
+                Log.w(TAG, "Peers still busy, downloading from a mirror: " + mRemotePath);
+                return null;
+            }
+            try {
+                Thread.sleep(PeerSharing.BUSY_RETRY_IN_MILLIS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for a peer");
+            }
+        }
+    }
+
+    // Returns the hash of the downloaded file, or null if it couldn't be
+    // downloaded in segments, e.g. because the server ignores ranges.
+    // Segments arrive out of order, so the file is hashed afterwards.
+    private String downloadSegmented(PartFile partFile, int segmentCount) throws IOException {
+        Mirrors.Mirror mirror = Mirrors.choose();
+        if (mirror == null)
             return null;
-        } finally {
+        if (SegmentedDownload.download(mirror.getUrl(mRemotePath), partFile.mFile, mSizeInBytes, segmentCount))
+            return getHashString(partFile.mFile, mHashAlgorithm);
+        Log.w(TAG, "Segmented download failed, trying one connection: " + mRemotePath);
+        // a preallocated file can't be resumed from its end
+        partFile.delete();
+        return null;
+    }
+
+    // Builds the file from the previous version's object and just the
+    // blocks that changed. Returns its hash, which is the expected one,
+    // or null if it couldn't be patched.
+    private String downloadDelta(PartFile partFile) throws IOException {
+        BlockHashes blockHashes = ContentSync.getBlockHashes(mFileName);
+        File seed = new File(mSeedPath);
+        if (blockHashes == null || !blockHashes.fits(mSizeInBytes) || !blockHashes.hasRollingSums()
+                || !seed.isFile())
+            return null;
+        if (DeltaDownload.download(mRemotePath, seed, partFile.mFile, mSizeInBytes, blockHashes)) {
+            String hashString = getHashString(partFile.mFile, mHashAlgorithm);
+            if (hashString.equalsIgnoreCase(mHashString))
+                return hashString;
+            Log.w(TAG, "Patched content doesn't match, downloading it all: " + mRemotePath);
+        }
+        partFile.delete();
+        return null;
+    }
+
+    // A download in progress, with the validators of the response it came
+    // from, for If-Range, the mirror that sent it, and how much of it is
+    // written. The digest covers what has been written.
+    private static class PartFile implements ContentSync.ResumeTarget,
+            FileChannelOutputStream.OnCheckpointListener {
+        static final String MIRROR = "Mirror";
+        static final String LENGTH = "Length";
+
+        final File mFile;
+        final File mValidatorsFile;
+        final long mSizeInBytes;
+        final ContentDigest mDigest;
+        final Properties mValidators = new Properties();
+        // Base url of the mirror the next bytes come from
+        String mMirror;
+        // Those of the bytes being written, or null if they can't be resumed
+        private Properties mWriting;
+
+        PartFile(File file, long sizeInBytes, ContentDigest digest) {
+            mFile = file;
+            mValidatorsFile = new File(file.getPath() + ContentSync.VALIDATORS_SUFFIX);
+            mSizeInBytes = sizeInBytes;
+            mDigest = digest;
+        }
+
+        // What's there can only be resumed if it's known where it came from.
+        // A file still preallocated, after the process died, is only
+        // written up to its last checkpoint.
+        long getResumeOffset() {
+            mValidators.clear();
+            if (!mFile.isFile() || !mValidatorsFile.isFile())
+                return 0;
+            ContentSync.loadProperties(mValidators, mValidatorsFile);
+            long length = mFile.length();
             try {
-                if (dis != null)
-                    dis.close();
-            } catch (IOException ignored) {
+                String checkpoint = mValidators.getProperty(LENGTH);
+                if (checkpoint != null)
+                    length = Math.min(length, Long.parseLong(checkpoint));
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+            return length;
+        }
+
+        @Override
+        public OutputStream open(long offset, Properties validators) throws IOException {
+            mDigest.reset();
+            if (offset > 0) {
+                FileInputStream in = new FileInputStream(mFile);
+                try {
+                    ContentHasher.update(mDigest, in.getChannel(), 0, offset);
+                } finally {
+                    in.close();
+                }
+            }
+            // before any new bytes, so they can be resumed
+            if (mMirror != null)
+                validators.setProperty(MIRROR, mMirror);
+            if (validators.isEmpty()) {
+                mWriting = null;
+                //noinspection ResultOfMethodCallIgnored
+                mValidatorsFile.delete();
+            } else {
+                mWriting = validators;
             }
+            checkpoint(offset);
+            return new DigestingOutputStream(new FileChannelOutputStream(mFile, offset, mSizeInBytes, this), mDigest);
         }
 
-        return md.digest();
+        @Override
+        public void checkpoint(long length) {
+            StorageQuota.written(mFile, length);
+            if (mWriting == null)
+                return;
+            mWriting.setProperty(LENGTH, Long.toString(length));
+            ContentSync.storeProperties(mWriting, mValidatorsFile);
+        }
+
+        void delete() {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+            //noinspection ResultOfMethodCallIgnored
+            mValidatorsFile.delete();
+        }
+    }
+
+    // Re-downloads just the blocks of a damaged file that don't match their
+    // block hashes, if there are any and the damage is limited. Returns true
+    // if the content is up to date afterwards.
+    private boolean repair() throws IOException {
+        BlockHashes blockHashes = ContentSync.getBlockHashes(mFileName);
+        File file = new File(mLocalPath);
+        if (blockHashes == null || !blockHashes.fits(mSizeInBytes)
+                || !file.isFile() || file.length() != mSizeInBytes)
+            return false;
+
+        List<Integer> badBlocks = blockHashes.findBadBlocks(file);
+        // No bad blocks means the block hashes are stale
+        if (badBlocks.isEmpty() || badBlocks.size() > MAX_REPAIR_FRACTION * blockHashes.getBlockCount())
+            return false;
+        Log.i(TAG, "Repairing " + badBlocks.size() + " blocks: " + mRemotePath);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int block : badBlocks) {
+                long start = (long) block * blockHashes.getBlockSize();
+                long end = Math.min(start + blockHashes.getBlockSize(), mSizeInBytes) - 1;
+                Mirrors.Mirror mirror = Mirrors.choose();
+                if (mirror == null || !ContentSync.getUrlRange(mirror.getUrl(mRemotePath),
+                        new FileRegionOutputStream(channel, start), start, end))
+                    return false;
+            }
+        } finally {
+            raf.close();
+        }
+        // Whole-file check; the blocks are only an aid to find damage
+        return !needsUpdate();
+    }
+
+    // Empty if the file couldn't be hashed
+    private static String getHashString(File file, String algorithm) {
+        try {
+            return ContentHasher.toHexString(ContentHasher.hash(file, algorithm));
+        } catch (NoSuchAlgorithmException | IOException e) {
+            Log.e(TAG, "", e);
+            return "";
+        }
     }
 
 }
@@ -0,0 +1,188 @@
+package com.rdm.rdmtestplayer;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/*
+ * Difference between the previous local content list and a new one,
+ * by path, size and hash. Only added and changed entries need a full
+ * sync; changed ones can be patched from their previous object (see
+ * DeltaDownload). Objects (see ContentStore) that no entry refers to any
+ * more can be deleted with collectOrphans(), once sync is done with them.
+ */
+class ContentDelta {
+    private static final String TAG = "ContentDelta";
+
+    private static final int ORPHAN_BATCH_SIZE = 64;
+    private static final long ORPHAN_BATCH_PAUSE_IN_MILLIS = 100;
+
+    final List<Content> mAdded = new ArrayList<>();
+    final List<Content> mChanged = new ArrayList<>();
+    final List<Content> mUnchanged = new ArrayList<>();
+    // file names, relative to the download path
+    final List<String> mRemoved = new ArrayList<>();
+    // paths of objects only previous entries refer to
+    final List<String> mOrphans = new ArrayList<>();
+    // Unchanged entries of an index, which are only created as needed
+    private ContentIndex.ContentList mIndexed;
+
+    private ContentDelta() {
+    }
+
+    // With no previous list, everything is added
+    public static ContentDelta compute(ContentIndex previous, List<Content> current) {
+        ContentDelta delta = new ContentDelta();
+        if (previous == null) {
+            delta.mAdded.addAll(current);
+            return delta;
+        }
+
+        boolean[] listed = new boolean[previous.size()];
+        for (Content content : current) {
+            int index = previous.find(content.getFileName());
+            if (index < 0) {
+                delta.mAdded.add(content);
+                continue;
+            }
+            listed[index] = true;
+            if (previous.getSizeInBytes(index) == content.getSizeInBytes()
+                    && previous.getHashAlgorithm(index).equals(content.getHashAlgorithm())
+                    && previous.getExpectedHashString(index).equalsIgnoreCase(content.getExpectedHashString()))
+                delta.mUnchanged.add(content);
+            else {
+                delta.mChanged.add(content);
+                // the previous version may have most of the new one's bytes
+                String hashString = previous.getExpectedHashString(index);
+                if (ContentStore.isValidHash(hashString))
+                    content.mSeedPath = ContentStore.getObjectFile(previous.getHashAlgorithm(index), hashString).getPath();
+            }
+        }
+        Set<String> objects = new HashSet<>();
+        for (Content content : current) {
+            objects.add(content.mLocalPath);
+        }
+        for (int i = 0; i < listed.length; i++) {
+            if (!listed[i])
+                delta.mRemoved.add(previous.getFileName(i));
+            // renamed or duplicated content keeps its object
+            String hashString = previous.getExpectedHashString(i);
+            if (!ContentStore.isValidHash(hashString))
+                continue;
+            String object = ContentStore.getObjectFile(previous.getHashAlgorithm(i), hashString).getPath();
+            if (objects.add(object))
+                delta.mOrphans.add(object);
+        }
+        Log.i(TAG, "added " + delta.mAdded.size() + ", changed " + delta.mChanged.size()
+                + ", unchanged " + delta.mUnchanged.size() + ", removed " + delta.mRemoved.size()
+                + ", orphaned objects " + delta.mOrphans.size());
+        return delta;
+    }
+
+    // The list is the same one that was synced before
+    public static ContentDelta unchanged(List<Content> current) {
+        ContentDelta delta = new ContentDelta();
+        if (current instanceof ContentIndex.ContentList)
+            delta.mIndexed = (ContentIndex.ContentList) current;
+        else
+            delta.mUnchanged.addAll(current);
+        return delta;
+    }
+
+    // Unchanged entries get fully verified, too
+    public void verifyAll() {
+        if (mIndexed != null) {
+            mChanged.addAll(mIndexed);
+            mIndexed = null;
+        }
+        mChanged.addAll(mUnchanged);
+        mUnchanged.clear();
+    }
+
+    // Added and changed entries, plus unchanged entries whose local file
+    // is missing or has the wrong size. Unchanged entries that are present
+    // are assumed to be up to date and are not hashed again.
+    public List<Content> getPending() {
+        List<Content> pending = new ArrayList<>(mAdded.size() + mChanged.size());
+        pending.addAll(mAdded);
+        pending.addAll(mChanged);
+        for (Content content : mUnchanged) {
+            if (!content.assumeUpToDateIfPresent())
+                pending.add(content);
+        }
+        // only the pending ones of an index are created
+        if (mIndexed != null) {
+            for (int i = 0; i < mIndexed.size(); i++) {
+                if (!mIndexed.isPresent(i))
+                    pending.add(mIndexed.get(i));
+            }
+            mIndexed.setAssumePresent();
+        }
+        return pending;
+    }
+
+    // Deletes orphaned objects, and any directories left empty, on a
+    // background thread, pausing between batches. Removed entries may
+    // also have left a file from before the store, at their listed path.
+    public void collectOrphans() {
+        if (mRemoved.isEmpty() && mOrphans.isEmpty())
+            return;
+        final List<File> removed = new ArrayList<>(mOrphans.size() + mRemoved.size());
+        for (String object : mOrphans) {
+            removed.add(new File(object));
+        }
+        for (String fileName : mRemoved) {
+            removed.add(Content.getLocalFile(fileName));
+        }
+        final File downloadPath = new File(Content.getDownloadPath());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                int deleted = 0;
+                for (int i = 0; i < removed.size(); i++) {
+                    File file = removed.get(i);
+                    // a list from before file names were checked may
+                    // name anything
+                    if (!Content.isUnderDownloadPath(file)) {
+                        Log.w(TAG, "Not deleting " + file + ", outside " + downloadPath);
+                        continue;
+                    }
+                    if (file.delete())
+                        deleted++;
+                    // and any unfinished download of it
+                    File partFile = new File(file.getPath() + Content.PART_SUFFIX);
+                    //noinspection ResultOfMethodCallIgnored
+                    partFile.delete();
+                    //noinspection ResultOfMethodCallIgnored
+                    new File(partFile.getPath() + ContentSync.VALIDATORS_SUFFIX).delete();
+                    deleteEmptyParents(file, downloadPath);
+                    if ((i + 1) % ORPHAN_BATCH_SIZE == 0) {
+                        try {
+                            Thread.sleep(ORPHAN_BATCH_PAUSE_IN_MILLIS);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+                Log.i(TAG, "Deleted " + deleted + " of " + removed.size() + " orphaned files");
+            }
+        }, TAG);
+        thread.start();
+    }
+
+    private static void deleteEmptyParents(File file, File root) {
+        File parent = file.getParentFile();
+        while (parent != null && !parent.equals(root)) {
+            // fails, harmlessly, if the directory isn't empty
+            if (!parent.delete())
+                return;
+            parent = parent.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.rdm.rdmtestplayer;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * Hash used to verify content. The algorithm is named by the optional
+ * fourth column of a content list line; md5 when it's absent.
+ */
+abstract class ContentDigest {
+    static final String MD5 = "md5";
+    static final String SHA256 = "sha256";
+    static final String XXH64 = "xxh64";
+
+    // Position in this array is the algorithm's id in ContentIndex
+    static final String[] ALGORITHMS = {MD5, SHA256, XXH64};
+
+    private byte[] mScratch;
+
+    public static boolean isSupported(String algorithm) {
+        return getId(algorithm) >= 0;
+    }
+
+    // Returns -1 for an unknown algorithm
+    public static int getId(String algorithm) {
+        for (int i = 0; i < ALGORITHMS.length; i++) {
+            if (ALGORITHMS[i].equals(algorithm))
+                return i;
+        }
+        return -1;
+    }
+
+    public static ContentDigest getInstance(String algorithm) throws NoSuchAlgorithmException {
+        if (MD5.equals(algorithm))
+            return new MessageContentDigest(MD5, MessageDigest.getInstance("MD5"));
+        if (SHA256.equals(algorithm))
+            return new MessageContentDigest(SHA256, MessageDigest.getInstance("SHA-256"));
+        if (XXH64.equals(algorithm))
+            return new XxHash64();
+        throw new NoSuchAlgorithmException("Unsupported content hash: " + algorithm);
+    }
+
+    public abstract String getAlgorithm();
+
+    public abstract void reset();
+
+    public abstract void update(byte[] input, int offset, int count);
+
+    // Consumes the buffer's remaining bytes. Buffers without an accessible
+    // array are copied through a small scratch array; subclasses that can
+    // read them directly should override this.
+    public void update(ByteBuffer input) {
+        if (input.hasArray()) {
+            update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+            input.position(input.limit());
+            return;
+        }
+        if (mScratch == null)
+            mScratch = new byte[8 * 1024];
+        while (input.hasRemaining()) {
+            int count = Math.min(input.remaining(), mScratch.length);
+            input.get(mScratch, 0, count);
+            update(mScratch, 0, count);
+        }
+    }
+
+    // Also resets the digest
+    public abstract byte[] digest();
+
+    private static class MessageContentDigest extends ContentDigest {
+        private final String mAlgorithm;
+        private final MessageDigest mMessageDigest;
+
+        MessageContentDigest(String algorithm, MessageDigest messageDigest) {
+            mAlgorithm = algorithm;
+            mMessageDigest = messageDigest;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return mAlgorithm;
+        }
+
+        @Override
+        public void reset() {
+            mMessageDigest.reset();
+        }
+
+        @Override
+        public void update(byte[] input, int offset, int count) {
+            mMessageDigest.update(input, offset, count);
+        }
+
+        @Override
+        public void update(ByteBuffer input) {
+            mMessageDigest.update(input);
+        }
+
+        @Override
+        public byte[] digest() {
+            return mMessageDigest.digest();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Hashes files through a FileChannel into a direct buffer, so file data
+ * never has to be copied onto the Java heap. Each thread reuses its own
+ * buffer and one ContentDigest per algorithm, so verification threads
+ * allocate next to nothing per file.
+ *
+ * A thread may charge what it reads to a byte rate budget
+ * (setReadBudget()), e.g. the integrity scrubber's, so its hashing stays
+ * within that rate whatever it's hashing for.
+ */
+class ContentHasher {
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<ByteBuffer> sBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            // xxh64 reads little-endian words
+            return ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    private static final ThreadLocal<TokenBucket> sReadBudget = new ThreadLocal<>();
+
+    private static final ThreadLocal<Map<String, ContentDigest>> sDigests =
+            new ThreadLocal<Map<String, ContentDigest>>() {
+                @Override
+                protected Map<String, ContentDigest> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    // Until it's set to null, what the calling thread reads here is
+    // charged to budget
+    public static void setReadBudget(TokenBucket budget) {
+        if (budget == null)
+            sReadBudget.remove();
+        else
+            sReadBudget.set(budget);
+    }
+
+    // The calling thread's, or null
+    public static TokenBucket getReadBudget() {
+        return sReadBudget.get();
+    }
+
+    // The calling thread's digest for algorithm, reset
+    public static ContentDigest getDigest(String algorithm) throws NoSuchAlgorithmException {
+        Map<String, ContentDigest> digests = sDigests.get();
+        ContentDigest digest = digests.get(algorithm);
+        if (digest == null) {
+            digest = ContentDigest.getInstance(algorithm);
+            digests.put(algorithm, digest);
+        } else {
+            digest.reset();
+        }
+        return digest;
+    }
+
+    public static byte[] hash(File file, String algorithm) throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = getDigest(algorithm);
+        ByteBuffer buffer = sBuffer.get();
+        TokenBucket budget = sReadBudget.get();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer.clear();
+            int bytesRead;
+            while ((bytesRead = channel.read(buffer)) != -1) {
+                if (budget != null)
+                    budget.acquire(bytesRead);
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    // Hashes length bytes (fewer at end of file) starting at position.
+    // Uses positional reads, so threads can share the channel.
+    public static byte[] hash(FileChannel channel, long position, long length, String algorithm)
+            throws IOException, NoSuchAlgorithmException {
+        ContentDigest digest = getDigest(algorithm);
+        update(digest, channel, position, length);
+        return digest.digest();
+    }
+
+    // Feeds length bytes (fewer at end of file) starting at position to
+    // digest, without finishing it
+    public static void update(ContentDigest digest, FileChannel channel, long position, long length)
+            throws IOException {
+        ByteBuffer buffer = sBuffer.get();
+        TokenBucket budget = sReadBudget.get();
+        final long end = position + length;
+        while (position < end) {
+            buffer.clear();
+            if (end - position < buffer.capacity())
+                buffer.limit((int) (end - position));
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1)
+                break;
+            if (budget != null)
+                budget.acquire(bytesRead);
+            position += bytesRead;
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    public static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
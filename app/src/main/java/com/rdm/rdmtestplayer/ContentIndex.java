@@ -0,0 +1,362 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/*
+ * Binary copy of the last good content list, written after a successful
+ * parse and memory-mapped on start up. Entries can be counted, read and
+ * looked up by path straight from the mapping, without parsing text or
+ * creating a Content for every line; see ContentList.
+ *
+ * Layout (big-endian):
+ *     header:  magic, version, count, string table offset,
+ *              hash table offset, hash table slots (all ints)
+ *     records: count * (path offset, path length, hash offset,
+ *              hash length, hash algorithm id (ints), size in bytes (long))
+ *     strings: UTF-8 path and hash bytes, referenced by the records
+ *     hash:    slots * (record index + 1, 0 if empty), open addressing
+ */
+class ContentIndex {
+    private static final String TAG = "ContentIndex";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAGIC = 0x52444d49; // "RDMI"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 6 * 4;
+    private static final int RECORD_SIZE = 5 * 4 + 8;
+
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mStringsOffset;
+    private final int mHashOffset;
+    private final int mHashSlots;
+
+    private ContentIndex(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE
+                || buffer.getInt(0) != MAGIC
+                || buffer.getInt(4) != VERSION)
+            throw new IOException("Not a content index");
+        mCount = buffer.getInt(8);
+        mStringsOffset = buffer.getInt(12);
+        mHashOffset = buffer.getInt(16);
+        mHashSlots = buffer.getInt(20);
+        if (mCount < 0
+                || mStringsOffset != HEADER_SIZE + mCount * RECORD_SIZE
+                || mHashOffset < mStringsOffset
+                || Integer.bitCount(mHashSlots) != 1
+                || (long) mHashOffset + 4L * mHashSlots != buffer.capacity())
+            throw new IOException("Corrupt content index");
+        validate();
+    }
+
+    // Checks every offset, length and id the getters and find() trust, so
+    // a damaged or truncated index is rejected here instead of failing
+    // later, and find() always reaches an empty slot
+    private void validate() throws IOException {
+        for (int i = 0; i < mCount; i++) {
+            int record = HEADER_SIZE + i * RECORD_SIZE;
+            int algorithm = mBuffer.getInt(record + 16);
+            if (!isString(mBuffer.getInt(record), mBuffer.getInt(record + 4))
+                    || !isString(mBuffer.getInt(record + 8), mBuffer.getInt(record + 12))
+                    || algorithm < 0 || algorithm >= ContentDigest.ALGORITHMS.length
+                    || mBuffer.getLong(record + 20) < 0)
+                throw new IOException("Corrupt content index record " + i);
+        }
+        int used = 0;
+        for (int slot = 0; slot < mHashSlots; slot++) {
+            int entry = mBuffer.getInt(mHashOffset + 4 * slot);
+            if (entry < 0 || entry > mCount)
+                throw new IOException("Corrupt content index hash table");
+            if (entry != 0)
+                used++;
+        }
+        if (used != mCount || used == mHashSlots)
+            throw new IOException("Corrupt content index hash table");
+    }
+
+    private boolean isString(int offset, int length) {
+        return offset >= mStringsOffset && length >= 0 && length <= mHashOffset - offset;
+    }
+
+    // Returns null if the index is missing or unreadable
+    public static ContentIndex open(File file) {
+        if (!file.isFile())
+            return null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "r");
+            FileChannel channel = raf.getChannel();
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new ContentIndex(buffer);
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring content index: " + file, e);
+            return null;
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Written to a temporary file first, so a reader never sees half an index
+    public static boolean write(List<Content> contentList, File file) {
+        final int count = contentList.size();
+        byte[][] paths = new byte[count][];
+        byte[][] hashes = new byte[count][];
+        int stringsSize = 0;
+        for (int i = 0; i < count; i++) {
+            Content content = contentList.get(i);
+            paths[i] = content.getFileName().getBytes(UTF_8);
+            hashes[i] = content.getExpectedHashString().getBytes(UTF_8);
+            stringsSize += paths[i].length + hashes[i].length;
+        }
+        // keep the load factor at or below one half
+        int hashSlots = Integer.highestOneBit(Math.max(count, 1)) * 4;
+        final int stringsOffset = HEADER_SIZE + count * RECORD_SIZE;
+        final int hashOffset = stringsOffset + stringsSize;
+
+        ByteBuffer buffer = ByteBuffer.allocate(hashOffset + 4 * hashSlots);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(count)
+                .putInt(stringsOffset).putInt(hashOffset).putInt(hashSlots);
+        int stringPosition = stringsOffset;
+        for (int i = 0; i < count; i++) {
+            buffer.putInt(stringPosition).putInt(paths[i].length);
+            stringPosition += paths[i].length;
+            buffer.putInt(stringPosition).putInt(hashes[i].length);
+            stringPosition += hashes[i].length;
+            buffer.putInt(ContentDigest.getId(contentList.get(i).getHashAlgorithm()));
+            buffer.putLong(contentList.get(i).getSizeInBytes());
+        }
+        for (int i = 0; i < count; i++) {
+            buffer.put(paths[i]).put(hashes[i]);
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = hash(paths[i]) & (hashSlots - 1);
+            while (buffer.getInt(hashOffset + 4 * slot) != 0)
+                slot = (slot + 1) & (hashSlots - 1);
+            buffer.putInt(hashOffset + 4 * slot, i + 1);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(buffer.array());
+            out.close();
+            out = null;
+            if (tempFile.renameTo(file))
+                return true;
+            Log.w(TAG, "Failed to rename content index: " + file);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ignored) {
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+        return false;
+    }
+
+    public int size() {
+        return mCount;
+    }
+
+    public String getFileName(int index) {
+        return getString(recordOffset(index));
+    }
+
+    public String getExpectedHashString(int index) {
+        return getString(recordOffset(index) + 8);
+    }
+
+    public String getHashAlgorithm(int index) {
+        return ContentDigest.ALGORITHMS[mBuffer.getInt(recordOffset(index) + 16)];
+    }
+
+    public long getSizeInBytes(int index) {
+        return mBuffer.getLong(recordOffset(index) + 20);
+    }
+
+    // Path of the entry's object; see ContentStore
+    public String getLocalPath(int index) {
+        return ContentStore.getObjectFile(getHashAlgorithm(index), getExpectedHashString(index)).getPath();
+    }
+
+    public Content getContent(int index) {
+        return new Content(getFileName(index), getSizeInBytes(index),
+                getExpectedHashString(index), getHashAlgorithm(index));
+    }
+
+    public ContentList asContentList() {
+        return new ContentList(this);
+    }
+
+    // Entry i of contentList, or null if contentList is a ContentList and
+    // hasn't created it
+    public static Content peek(List<Content> contentList, int i) {
+        if (contentList instanceof ContentList)
+            return ((ContentList) contentList).peek(i);
+        return contentList.get(i);
+    }
+
+    // Returns the index of the entry for fileName, or -1
+    public int find(String fileName) {
+        byte[] path = fileName.getBytes(UTF_8);
+        int slot = hash(path) & (mHashSlots - 1);
+        int entry;
+        while ((entry = mBuffer.getInt(mHashOffset + 4 * slot)) != 0) {
+            int record = recordOffset(entry - 1);
+            if (equals(path, mBuffer.getInt(record), mBuffer.getInt(record + 4)))
+                return entry - 1;
+            slot = (slot + 1) & (mHashSlots - 1);
+        }
+        return -1;
+    }
+
+    private int recordOffset(int index) {
+        if (index < 0 || index >= mCount)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mCount);
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    private String getString(int record) {
+        byte[] bytes = new byte[mBuffer.getInt(record + 4)];
+        for (int i = 0, offset = mBuffer.getInt(record); i < bytes.length; i++) {
+            bytes[i] = mBuffer.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private boolean equals(byte[] path, int offset, int length) {
+        if (path.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (path[i] != mBuffer.get(offset + i))
+                return false;
+        }
+        return true;
+    }
+
+    // FNV-1a
+    private static int hash(byte[] bytes) {
+        int hash = 0x811c9dc5;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /*
+     * The entries of an index as Content, each created the first time
+     * it's asked for and kept from then on, so its status sticks. Sync
+     * only asks for the ones it has to work on (see ContentDelta), and
+     * what only needs an entry's path, size or hash reads the index.
+     *
+     * Once sync has assumed the entries that are present to be up to date
+     * (setAssumePresent()), entries created later are assumed so too, as
+     * by Content.assumeUpToDateIfPresent().
+     */
+    static class ContentList extends AbstractList<Content> implements RandomAccess {
+        private final ContentIndex mIndex;
+        private final Content[] mContent;
+        private volatile boolean mAssumePresent = false;
+
+        private ContentList(ContentIndex index) {
+            mIndex = index;
+            mContent = new Content[index.size()];
+        }
+
+        public ContentIndex getIndex() {
+            return mIndex;
+        }
+
+        @Override
+        public int size() {
+            return mContent.length;
+        }
+
+        @Override
+        public synchronized Content get(int i) {
+            Content content = mContent[i];
+            if (content == null) {
+                content = mIndex.getContent(i);
+                if (mAssumePresent)
+                    content.assumeUpToDateIfPresent();
+                mContent[i] = content;
+            }
+            return content;
+        }
+
+        // null if entry i hasn't been created
+        public synchronized Content peek(int i) {
+            return mContent[i];
+        }
+
+        // Without creating anything
+        @Override
+        public int indexOf(Object o) {
+            if (!(o instanceof Content))
+                return -1;
+            int i = mIndex.find(((Content) o).getFileName());
+            if (i >= 0 && peek(i) == o)
+                return i;
+            // a file name may be listed more than once
+            synchronized (this) {
+                for (i = 0; i < mContent.length; i++) {
+                    if (mContent[i] == o)
+                        return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        public boolean isAssumePresent() {
+            return mAssumePresent;
+        }
+
+        public void setAssumePresent() {
+            mAssumePresent = true;
+        }
+
+        // Whether entry i's file is there, with the right size and not known
+        // to have changed, and if it's been created, assumed up to date
+        public boolean isPresent(int i) {
+            Content content = peek(i);
+            if (content != null)
+                return content.assumeUpToDateIfPresent();
+            return Content.isPresent(new File(mIndex.getLocalPath(i)), mIndex.getSizeInBytes(i),
+                    mIndex.getHashAlgorithm(i), mIndex.getExpectedHashString(i));
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Streaming content list parser. Bytes are written to it as they arrive
+ * (straight off the HTTP connection or from the local copy) and are split
+ * into lines and fields in place, so the list never has to be held in
+ * memory as a whole and no String is built for a line before it's parsed.
+ *
+ * Every byte written is also passed on to the tee stream, if any, which
+ * is how the local copy of the content list gets written during download.
+ *
+ * Format, one entry per line:
+ *     filepath relative to base url,size in bytes,hash[,hash algorithm]
+ * The algorithm is one of ContentDigest.ALGORITHMS and defaults to md5,
+ * so three-column lists are read as before. The hash is in hex.
+ */
+class ContentListParser extends OutputStream {
+    private static final String TAG = "ContentListParser";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NUM_CONTENT_LINE_PARTS = 3;
+    private static final int MAX_CONTENT_LINE_PARTS = 4;
+
+    private final OutputStream mTee;
+    private final List<Content> mContentList = new ArrayList<>();
+
+    // Current, incomplete line. Grows as needed, but is reused between lines.
+    private byte[] mLine = new byte[256];
+    private int mLineLength = 0;
+    private final int[] mCommas = new int[MAX_CONTENT_LINE_PARTS];
+
+    public ContentListParser(OutputStream tee) {
+        mTee = tee;
+    }
+
+    public List<Content> getContentList() {
+        return mContentList;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        if (mTee != null)
+            mTee.write(oneByte);
+        if (oneByte == '\n')
+            endLine();
+        else
+            append(oneByte);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        if (mTee != null)
+            mTee.write(buffer, offset, count);
+        int start = offset;
+        final int end = offset + count;
+        for (int i = offset; i < end; i++) {
+            if (buffer[i] != '\n')
+                continue;
+            append(buffer, start, i - start);
+            endLine();
+            start = i + 1;
+        }
+        append(buffer, start, end - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (mTee != null)
+            mTee.flush();
+    }
+
+    // Parses any unterminated last line and closes the tee stream.
+    @Override
+    public void close() throws IOException {
+        endLine();
+        if (mTee != null)
+            mTee.close();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mLine.length)
+            return;
+        byte[] line = new byte[Math.max(capacity, mLine.length * 2)];
+        System.arraycopy(mLine, 0, line, 0, mLineLength);
+        mLine = line;
+    }
+
+    private void append(int oneByte) {
+        ensureCapacity(mLineLength + 1);
+        mLine[mLineLength++] = (byte) oneByte;
+    }
+
+    private void append(byte[] buffer, int offset, int count) {
+        if (count <= 0)
+            return;
+        ensureCapacity(mLineLength + count);
+        System.arraycopy(buffer, offset, mLine, mLineLength, count);
+        mLineLength += count;
+    }
+
+    private void endLine() {
+        int length = mLineLength;
+        mLineLength = 0;
+        if (length > 0 && mLine[length - 1] == '\r')
+            length--;
+        if (length == 0)
+            return;
+        try {
+            mContentList.add(parseLine(mLine, length));
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+
+    private Content parseLine(byte[] line, int length) throws IllegalArgumentException {
+        // mCommas[n] is the end of field n; anything after the last field is ignored
+        int numFields = 0;
+        for (int i = 0; i < length && numFields < mCommas.length; i++) {
+            if (line[i] == ',')
+                mCommas[numFields++] = i;
+        }
+        if (numFields < mCommas.length)
+            mCommas[numFields++] = length;
+        if (numFields < NUM_CONTENT_LINE_PARTS)
+            throw new IllegalArgumentException("Invalid content line: " + new String(line, 0, length, UTF_8));
+
+        final String fileName = new String(line, 0, mCommas[0], UTF_8);
+        // it names files under the download path; see ContentDelta
+        if (!Content.isValidFileName(fileName))
+            throw new IllegalArgumentException("Invalid file name: " + new String(line, 0, length, UTF_8));
+        final long sizeInBytes = parseLong(line, mCommas[0] + 1, mCommas[1], length);
+        final String hashString = new String(line, mCommas[1] + 1, mCommas[2] - mCommas[1] - 1, UTF_8);
+        String hashAlgorithm = ContentDigest.MD5;
+        if (numFields > NUM_CONTENT_LINE_PARTS && mCommas[3] > mCommas[2] + 1) {
+            hashAlgorithm = new String(line, mCommas[2] + 1, mCommas[3] - mCommas[2] - 1, UTF_8)
+                    .trim().toLowerCase(Locale.US);
+            if (!ContentDigest.isSupported(hashAlgorithm))
+                throw new IllegalArgumentException("Unsupported hash algorithm: "
+                        + new String(line, 0, length, UTF_8));
+        }
+        // it names the local file; see ContentStore
+        if (!ContentStore.isValidHash(hashString))
+            throw new IllegalArgumentException("Invalid hash: " + new String(line, 0, length, UTF_8));
+        return new Content(fileName, sizeInBytes, hashString, hashAlgorithm);
+    }
+
+    private static long parseLong(byte[] line, int start, int end, int length) throws IllegalArgumentException {
+        if (start == end)
+            throw new IllegalArgumentException("Missing size: " + new String(line, 0, length, UTF_8));
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+                throw new IllegalArgumentException("Invalid size: " + new String(line, 0, length, UTF_8));
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
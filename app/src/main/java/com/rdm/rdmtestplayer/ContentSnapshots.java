@@ -0,0 +1,399 @@
+package com.rdm.rdmtestplayer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Immutable snapshots of synced content for the player to read from, so
+ * sync can work on the download path while content plays.
+ *
+ * Sync doesn't write into files in place: a download replaces a file by
+ * renaming a verified .part file over it. So a snapshot can be a
+ * directory of hard links to the files as they were when it was
+ * published. It costs no copying, and later syncs don't change what it
+ * holds. (Block repair is the exception. It writes in place, but only
+ * the expected bytes over damaged ones.)
+ *
+ * Layout, under the download path:
+ *     snapshots/<id>/...          links, at their paths in the list
+ *     snapshots/<id>.manifest     their file names, one per line
+ *     snapshots/current           the id of the current snapshot
+ * A snapshot is built under a temporary name, then made current by
+ * replacing the pointer file with one rename. A crash at any point
+ * leaves either the old snapshot current or the new one.
+ *
+ * While sync downloads, add() links what's finished into the current
+ * snapshot instead of publishing a new one each time. It only adds
+ * names the snapshot doesn't list, so nothing a player has read from it
+ * changes; the publish at the end of sync brings in changed and removed
+ * entries.
+ *
+ * The current snapshot, the one before it (for rollback()) and any still
+ * acquired by a player are kept. Older ones are deleted, which only
+ * removes links: files they share with newer snapshots stay.
+ *
+ * Hard links need API 21 (android.system.Os) and a file system that has
+ * them. Without them isEnabled() is false and the player reads the
+ * download path directly.
+ *
+ * Publishing and releasing delete links, one per file, so neither should
+ * run on the UI thread.
+ */
+class ContentSnapshots {
+    private static final String TAG = "ContentSnapshots";
+
+    private static final String SNAPSHOTS = "snapshots";
+    private static final String CURRENT = "current";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    // Download path -> whether it has hard links
+    private static final Map<String, Boolean> sEnabled = new HashMap<>();
+    // Snapshot id -> number of players holding it
+    private static final Map<Integer, Integer> sAcquired = new HashMap<>();
+
+    public static String getSnapshotsPath() {
+        return new File(Content.getDownloadPath(), SNAPSHOTS).getPath();
+    }
+
+    public static synchronized boolean isEnabled() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return false;
+        String downloadPath = Content.getDownloadPath();
+        Boolean enabled = sEnabled.get(downloadPath);
+        if (enabled == null) {
+            enabled = probeLinks(new File(getSnapshotsPath()));
+            sEnabled.put(downloadPath, enabled);
+            if (!enabled)
+                Log.w(TAG, "No hard links in " + downloadPath + ", snapshots disabled");
+        }
+        return enabled;
+    }
+
+    // -1 if there is none
+    public static synchronized int getCurrent() {
+        File pointer = new File(getSnapshotsPath(), CURRENT);
+        List<String> lines = readLines(pointer);
+        if (lines.isEmpty())
+            return -1;
+        try {
+            int id = Integer.parseInt(lines.get(0).trim());
+            return new File(getSnapshotsPath(), id + MANIFEST_SUFFIX).isFile() ? id : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // The current snapshot, which is kept until release(), or -1
+    public static synchronized int acquire() {
+        if (!isEnabled())
+            return -1;
+        int id = getCurrent();
+        if (id >= 0) {
+            Integer count = sAcquired.get(id);
+            sAcquired.put(id, count == null ? 1 : count + 1);
+        }
+        return id;
+    }
+
+    // Ignores ids below 0
+    public static synchronized void release(int id) {
+        Integer count = sAcquired.get(id);
+        if (count == null)
+            return;
+        if (count > 1)
+            sAcquired.put(id, count - 1);
+        else
+            sAcquired.remove(id);
+        collectGarbage();
+    }
+
+    // Absolute paths of the files in snapshot id, in list order
+    public static List<String> getPaths(int id) {
+        File directory = new File(getSnapshotsPath(), Integer.toString(id));
+        List<String> paths = new ArrayList<>();
+        for (String fileName : readLines(new File(getSnapshotsPath(), id + MANIFEST_SUFFIX))) {
+            paths.add(new File(directory, fileName).getPath());
+        }
+        return paths;
+    }
+
+    // Publishes localPaths, linked at fileNames, as a new snapshot and makes
+    // it current. A file name that's listed again is skipped. Returns the
+    // id, or -1 if that failed, in which case the current snapshot doesn't
+    // change.
+    public static synchronized int publish(List<String> fileNames, List<String> localPaths) {
+        File snapshots = new File(getSnapshotsPath());
+        int id = Math.max(getCurrent(), getNewest(snapshots)) + 1;
+        File tempDirectory = new File(snapshots, id + TEMP_SUFFIX);
+        File tempManifest = new File(snapshots, id + MANIFEST_SUFFIX + TEMP_SUFFIX);
+        Set<String> linked = new HashSet<>();
+        try {
+            deleteTree(tempDirectory);
+            List<String> manifest = new ArrayList<>(fileNames.size());
+            for (int i = 0; i < fileNames.size(); i++) {
+                String fileName = fileNames.get(i);
+                // a second link would fail with EEXIST
+                if (!linked.add(fileName)) {
+                    Log.w(TAG, "Listed more than once, skipped: " + fileName);
+                    continue;
+                }
+                File link = new File(tempDirectory, fileName);
+                //noinspection ResultOfMethodCallIgnored
+                link.getParentFile().mkdirs();
+                if (!link(new File(localPaths.get(i)), link))
+                    throw new IOException("Failed to link " + localPaths.get(i));
+                manifest.add(fileName);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tempDirectory.mkdirs();
+            writeLines(manifest, tempManifest);
+            File directory = new File(snapshots, Integer.toString(id));
+            deleteTree(directory);
+            if (!tempDirectory.renameTo(directory)
+                    || !tempManifest.renameTo(new File(snapshots, id + MANIFEST_SUFFIX)))
+                throw new IOException("Failed to rename snapshot " + id);
+            setCurrent(id);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            deleteTree(tempDirectory);
+            //noinspection ResultOfMethodCallIgnored
+            tempManifest.delete();
+            return -1;
+        }
+        Log.i(TAG, "Published snapshot " + id + ", " + linked.size() + " files");
+        collectGarbage();
+        return id;
+    }
+
+    // Links localPaths at fileNames into the current snapshot, for
+    // content that's downloaded while it plays. Names it already lists are
+    // skipped, so what it holds only grows. Returns the paths of the new
+    // links, in order, or null if there is no current snapshot or its
+    // manifest can't be updated.
+    public static synchronized List<String> add(List<String> fileNames, List<String> localPaths) {
+        int id = getCurrent();
+        if (id < 0)
+            return null;
+        File directory = new File(getSnapshotsPath(), Integer.toString(id));
+        File manifest = new File(getSnapshotsPath(), id + MANIFEST_SUFFIX);
+        File tempManifest = new File(manifest.getPath() + TEMP_SUFFIX);
+        List<String> lines = readLines(manifest);
+        Set<String> listed = new HashSet<>(lines);
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < fileNames.size(); i++) {
+            String fileName = fileNames.get(i);
+            if (!listed.add(fileName))
+                continue;
+            File link = new File(directory, fileName);
+            // a link that isn't listed is left from an add() that didn't finish
+            //noinspection ResultOfMethodCallIgnored
+            link.delete();
+            //noinspection ResultOfMethodCallIgnored
+            link.getParentFile().mkdirs();
+            if (!link(new File(localPaths.get(i)), link))
+                continue;
+            lines.add(fileName);
+            paths.add(link.getPath());
+        }
+        if (paths.isEmpty())
+            return paths;
+        try {
+            writeLines(lines, tempManifest);
+            if (!tempManifest.renameTo(manifest))
+                throw new IOException("Failed to update " + manifest);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            //noinspection ResultOfMethodCallIgnored
+            tempManifest.delete();
+            return null;
+        }
+        Log.i(TAG, "Added " + paths.size() + " files to snapshot " + id);
+        return paths;
+    }
+
+    // Makes the snapshot before the current one current again. It stays
+    // so until the next publish(). Returns false if there is none.
+    public static synchronized boolean rollback() {
+        int current = getCurrent();
+        int previous = getPrevious(current);
+        if (previous < 0)
+            return false;
+        try {
+            setCurrent(previous);
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        Log.i(TAG, "Rolled back from snapshot " + current + " to " + previous);
+        return true;
+    }
+
+    private static void setCurrent(int id) throws IOException {
+        File pointer = new File(getSnapshotsPath(), CURRENT);
+        File tempPointer = new File(pointer.getPath() + TEMP_SUFFIX);
+        List<String> lines = new ArrayList<>();
+        lines.add(Integer.toString(id));
+        writeLines(lines, tempPointer);
+        if (!tempPointer.renameTo(pointer))
+            throw new IOException("Failed to update " + pointer);
+    }
+
+    // Deletes everything but the current snapshot, the one before it and
+    // acquired ones, including leftovers of interrupted publishes
+    private static void collectGarbage() {
+        int current = getCurrent();
+        int previous = getPrevious(current);
+        File[] files = new File(getSnapshotsPath()).listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.equals(CURRENT))
+                continue;
+            int id = parseId(name);
+            if (id >= 0 && (id == current || id == previous || sAcquired.containsKey(id))
+                    && !name.endsWith(TEMP_SUFFIX))
+                continue;
+            deleteTree(file);
+        }
+    }
+
+    // Id of the newest complete snapshot older than id, or -1
+    private static int getPrevious(int id) {
+        int previous = -1;
+        File[] files = new File(getSnapshotsPath()).listFiles();
+        if (files == null)
+            return -1;
+        for (File file : files) {
+            if (!file.getName().endsWith(MANIFEST_SUFFIX))
+                continue;
+            int other = parseId(file.getName());
+            if (other < id && other > previous && new File(getSnapshotsPath(), Integer.toString(other)).isDirectory())
+                previous = other;
+        }
+        return previous;
+    }
+
+    // Largest id of anything in snapshots, or -1
+    private static int getNewest(File snapshots) {
+        int newest = -1;
+        String[] names = snapshots.list();
+        if (names != null) {
+            for (String name : names) {
+                newest = Math.max(newest, parseId(name));
+            }
+        }
+        return newest;
+    }
+
+    // The number a snapshot file name starts with, or -1
+    private static int parseId(String name) {
+        int end = 0;
+        while (end < name.length() && end < 9 && Character.isDigit(name.charAt(end)))
+            end++;
+        return end == 0 ? -1 : Integer.parseInt(name.substring(0, end));
+    }
+
+    private static boolean probeLinks(File snapshots) {
+        //noinspection ResultOfMethodCallIgnored
+        snapshots.mkdirs();
+        File probe = new File(snapshots, "probe" + TEMP_SUFFIX);
+        File link = new File(snapshots, "probe.link" + TEMP_SUFFIX);
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            link.delete();
+            //noinspection ResultOfMethodCallIgnored
+            probe.createNewFile();
+            return link(probe, link);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            probe.delete();
+            //noinspection ResultOfMethodCallIgnored
+            link.delete();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean link(File file, File link) {
+        try {
+            Os.link(file.getPath(), link.getPath());
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "link " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    // Empty if file can't be read
+    private static List<String> readLines(File file) {
+        List<String> lines = new ArrayList<>();
+        if (!file.isFile())
+            return lines;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty())
+                    lines.add(line);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        } finally {
+            try {
+                if (reader != null)
+                    reader.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return lines;
+    }
+
+    // Synced to disk, since a rename publishes it
+    private static void writeLines(List<String> lines, File file) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/*
+ * Local content is stored by digest, not by its path in the content list:
+ *     objects/<algorithm>/<h0h1>/<h2h3>/<hash>
+ * under the download path, where h0h1 and h2h3 are the first hex digits
+ * of the hash. The two fan-out levels keep directories small: 65536 of
+ * them share out the files.
+ *
+ * The content list itself is the index from paths to objects, and
+ * snapshots (see ContentSnapshots) give the player the listed paths as
+ * hard links. So content listed several times is stored, downloaded and
+ * hashed once, and content that is renamed or moved upstream is already
+ * here.
+ */
+class ContentStore {
+    private static final String TAG = "ContentStore";
+
+    private static final String OBJECTS = "objects";
+
+    public static String getObjectsPath() {
+        return new File(Content.getDownloadPath(), OBJECTS).getPath();
+    }
+
+    // hashString must be hex, as ContentListParser makes sure
+    public static File getObjectFile(String hashAlgorithm, String hashString) {
+        if (!isValidHash(hashString))
+            throw new IllegalArgumentException("Invalid hash: " + hashString);
+        String hash = hashString.toLowerCase(Locale.US);
+        File directory = new File(new File(new File(getObjectsPath(), hashAlgorithm),
+                hash.substring(0, 2)), hash.substring(2, 4));
+        return new File(directory, hash);
+    }
+
+    public static boolean isValidHash(String hashString) {
+        if (hashString.length() < 4)
+            return false;
+        for (int i = 0; i < hashString.length(); i++) {
+            if (Character.digit(hashString.charAt(i), 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Moves a file from before the store, at its listed path, into the
+    // store if its object is missing and the size is right. Sync verifies
+    // it like any other. Returns true if it moved.
+    public static boolean adoptLegacyFile(Content content) {
+        File object = new File(content.mLocalPath);
+        File legacy = Content.getLocalFile(content.getFileName());
+        if (object.exists() || !legacy.isFile() || legacy.length() != content.getSizeInBytes())
+            return false;
+        //noinspection ResultOfMethodCallIgnored
+        object.getParentFile().mkdirs();
+        if (!legacy.renameTo(object)) {
+            Log.w(TAG, "Failed to move " + legacy + " into the store");
+            return false;
+        }
+        // and drop the directories it leaves empty
+        File root = new File(Content.getDownloadPath());
+        File parent = legacy.getParentFile();
+        while (parent != null && !parent.equals(root) && parent.delete())
+            parent = parent.getParentFile();
+        return true;
+    }
+
+    // The first entry for each object, in order. The others go to duplicates.
+    public static List<Content> unique(List<Content> contentList, List<Content> duplicates) {
+        Set<String> seen = new HashSet<>();
+        List<Content> unique = new ArrayList<>(contentList.size());
+        for (Content content : contentList) {
+            if (seen.add(content.mLocalPath))
+                unique.add(content);
+            else
+                duplicates.add(content);
+        }
+        return unique;
+    }
+}
@@ -1,171 +1,967 @@
 package com.rdm.rdmtestplayer;
 
+import android.os.Process;
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.Reader;
-import java.io.StringReader;
 import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
 
 class ContentSync {
     private static final String TAG = "ContentSync";
 
-    private static List<Content> sContentList;
+    static final String VALIDATORS_SUFFIX = ".validators";
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+    // Snapshots are published no more often than this during downloads
+    private static final long PUBLISH_INTERVAL_IN_NANOS = 10 * 1000000000L;
+    private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+    // Each downloading thread reuses its own
+    private static final ThreadLocal<byte[]> sCopyBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[COPY_BUFFER_SIZE];
+        }
+    };
+    // Bytes received by all downloads so far, which DownloadScheduler
+    // samples for its throughput
+    private static final AtomicLong sBytesReceived = new AtomicLong();
+
+    // Replaced, never modified, once parsed; read by other threads. On
+    // start up it's a ContentIndex.ContentList, which creates each Content
+    // only when it's asked for.
+    private static volatile List<Content> sContentList;
+    private static ContentDelta sContentDelta;
+    private static VerificationLedger sVerificationLedger;
+    private static Map<String, BlockHashes> sBlockHashes = new HashMap<>();
+    private static boolean sDeepVerify = false;
+    private static boolean sLazyVerification = false;
+    // Playable on a size match while they are verified in the background
+    private static final Set<Content> sProvisionalContent =
+            Collections.synchronizedSet(new HashSet<Content>());
+    // Out of date at the start of the running sync
+    private static final Set<Content> sDownloading =
+            Collections.synchronizedSet(new HashSet<Content>());
 
     interface OnSyncProgressListener {
         void setNumberOfDownloads(int numberOfDownloads);
 
+        // Once for each of those downloads, however many requests it takes
+        void contentStarted(String fileName);
+
+        // For each request, of a segment, range or retry too
         void downloadStarted(String url, long totalBytes);
 
         void downloadProgress(long totalBytesRead);
 
         void downloadFinished();
+
+        // Sync found no room for this many downloads, of this many bytes,
+        // and skips them
+        void insufficientSpace(int numberOfDownloads, long totalBytes);
     }
 
     private static OnSyncProgressListener sOnSyncProgressListener;
 
+    // Called on a background thread when content becomes playable, or
+    // stops being playable, after sync.
+    interface OnContentChangedListener {
+        void contentAdded(String localPath);
+
+        void contentRemoved(String localPath);
+
+        // Playable content changed as a whole, e.g. a new snapshot (see
+        // ContentSnapshots) is current; the playlist should be reloaded
+        void contentListChanged();
+    }
+
+    private static volatile OnContentChangedListener sOnContentChangedListener;
+    // Downloaded since the snapshot was last added to
+    private static final List<Content> sDownloaded = new ArrayList<>();
+    private static long sNextPublish;
+    // The download whose progress is reported
+    private static Thread sProgressThread;
+
     public static void sync(OnSyncProgressListener onSyncProgressListener,
                             String downloadPath) throws IOException {
         Content.setDownloadPath(downloadPath);
         sOnSyncProgressListener = onSyncProgressListener;
-        List<Content> contentList = getContentList();
-        if (sOnSyncProgressListener != null) {
-            int numberToDownload = contentList.size() - getLocalContentList().size();
-            sOnSyncProgressListener.setNumberOfDownloads(numberToDownload);
+        BandwidthLimiter.load(new File(Content.getLocalBandwidthUrl()));
+        Mirrors.load(new File(Content.getLocalMirrorsUrl()));
+        File deepVerifyFile = new File(Content.getLocalDeepVerifyUrl());
+        boolean deepVerify = sDeepVerify || deepVerifyFile.exists();
+        sVerificationLedger = VerificationLedger.load(new File(Content.getLocalVerificationLedgerUrl()));
+        sVerificationLedger.setDeepVerify(deepVerify);
+        if (deepVerify)
+            sContentList = null; // drop in-memory verification state
+        getContentList();
+        loadBlockHashes();
+        // assumptions about unchanged content are off, too
+        if (deepVerify)
+            sContentDelta.verifyAll();
+        boolean lazyVerification = !deepVerify
+                && (sLazyVerification || new File(Content.getLocalLazyVerifyUrl()).exists());
+        List<Content> pending = sContentDelta.getPending();
+        for (Content content : pending) {
+            ContentStore.adoptLegacyFile(content);
+        }
+        // Entries that share an object are verified and downloaded once,
+        // and then the others just take its status
+        List<Content> duplicates = new ArrayList<>();
+        pending = ContentStore.unique(pending, duplicates);
+        List<Content> provisional = new ArrayList<>();
+        if (lazyVerification)
+            pending = splitProvisional(pending, provisional);
+        List<String> localPaths = getLocalPaths(sContentList);
+        try {
+            List<Content> outOfDate = VerificationExecutor.findOutOfDate(pending);
+            // Downloads that can't fit are reported before any starts
+            List<Content> skipped = new ArrayList<>();
+            outOfDate = StorageQuota.plan(DownloadScheduler.prioritize(outOfDate, sContentList),
+                    localPaths, skipped);
+            if (!skipped.isEmpty() && sOnSyncProgressListener != null) {
+                long skippedBytes = 0;
+                for (Content content : skipped) {
+                    skippedBytes += content.getSizeInBytes();
+                }
+                sOnSyncProgressListener.insufficientSpace(skipped.size(), skippedBytes);
+            }
+            sDownloading.addAll(outOfDate);
+            // what's here already can play while the rest downloads
+            if (outOfDate.size() < sContentList.size())
+                notifyContentListChanged();
+            if (sOnSyncProgressListener != null)
+                sOnSyncProgressListener.setNumberOfDownloads(outOfDate.size());
+            new DownloadScheduler().download(outOfDate);
+        } finally {
+            sDownloading.clear();
+            // keep what was verified, even if sync didn't finish
+            sVerificationLedger.save();
+        }
+        sContentDelta.collectOrphans();
+
+        sVerificationLedger.retain(localPaths);
+        sVerificationLedger.save();
+        sVerificationLedger.setDeepVerify(false);
+        // the ledger knows their objects now
+        VerificationExecutor.needsUpdate(duplicates);
+        if (deepVerify) {
+            sDeepVerify = false;
+            //noinspection ResultOfMethodCallIgnored
+            deepVerifyFile.delete();
+        }
+        // Later repairs, by the scrubber, aren't part of this sync
+        sOnSyncProgressListener = null;
+        publishSnapshot();
+
+        if (!provisional.isEmpty())
+            verifyInBackground(provisional);
+    }
+
+    // Moves entries whose file has the expected size from pending to
+    // provisional, and returns what's left
+    private static List<Content> splitProvisional(List<Content> pending, List<Content> provisional) {
+        List<Content> rest = new ArrayList<>();
+        for (Content content : pending) {
+            if (content.hasExpectedSize())
+                provisional.add(content);
+            else
+                rest.add(content);
+        }
+        sProvisionalContent.clear();
+        sProvisionalContent.addAll(provisional);
+        Log.i(TAG, provisional.size() + " entries playable before verification");
+        return rest;
+    }
+
+    // Hashes provisional content on background threads. Entries that fail
+    // are withdrawn at once, then downloaded again one by one.
+    private static void verifyInBackground(final List<Content> provisional) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                List<Callable<Boolean>> tasks = new ArrayList<>(provisional.size());
+                for (final Content content : provisional) {
+                    tasks.add(new Callable<Boolean>() {
+                        @Override
+                        public Boolean call() {
+                            boolean needsUpdate = content.needsUpdate();
+                            sProvisionalContent.remove(content);
+                            if (needsUpdate)
+                                notifyContentRemoved(content);
+                            return needsUpdate;
+                        }
+                    });
+                }
+                try {
+                    // the pool's threads, too, stay out of playback's way
+                    boolean[] needsUpdate = VerificationExecutor.invokeAllInBackground(tasks);
+                    sVerificationLedger.save();
+                    for (int i = 0; i < needsUpdate.length; i++) {
+                        if (!needsUpdate[i])
+                            continue;
+                        Content content = provisional.get(i);
+                        content.download();
+                        if (content.isUpToDate())
+                            notifyContentAdded(content);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "", e);
+                } finally {
+                    sProvisionalContent.clear();
+                    sVerificationLedger.save();
+                }
+            }
+        }, "LazyVerification");
+        thread.start();
+    }
+
+    // With lazy verification, content whose file has the expected size is
+    // playable right after sync and verified in the background; entries
+    // that fail are withdrawn through the OnContentChangedListener and
+    // downloaded again. Creating the lazy_verify file in the download path
+    // turns it on, too. Deep verify overrides it.
+    public static void setLazyVerification(boolean lazyVerification) {
+        sLazyVerification = lazyVerification;
+    }
+
+    public static void setOnContentChangedListener(OnContentChangedListener listener) {
+        sOnContentChangedListener = listener;
+    }
+
+    static void notifyContentAdded(Content content) {
+        if (publishSnapshot())
+            return;
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener != null)
+            listener.contentAdded(content.mLocalPath);
+    }
+
+    static void notifyContentRemoved(Content content) {
+        if (publishSnapshot())
+            return;
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener != null)
+            listener.contentRemoved(content.mLocalPath);
+    }
+
+    // Called by DownloadScheduler as each download is verified. With
+    // snapshots, what's downloaded is added to the current one at most
+    // every PUBLISH_INTERVAL_IN_NANOS while downloads go on, and a new one
+    // is published once at the end.
+    static void contentDownloaded(Content content) {
+        if (!ContentSnapshots.isEnabled()) {
+            notifyContentAdded(content);
+            return;
+        }
+        List<String> fileNames = new ArrayList<>();
+        List<String> localPaths = new ArrayList<>();
+        synchronized (sDownloaded) {
+            sDownloaded.add(content);
+            if (System.nanoTime() - sNextPublish < 0)
+                return;
+            sNextPublish = System.nanoTime() + PUBLISH_INTERVAL_IN_NANOS;
+            for (Content downloaded : sDownloaded) {
+                fileNames.add(downloaded.getFileName());
+                localPaths.add(downloaded.mLocalPath);
+            }
+            sDownloaded.clear();
+        }
+        // only the new links, so the listener doesn't reload everything
+        List<String> added = ContentSnapshots.add(fileNames, localPaths);
+        if (added == null) {
+            publishSnapshot();
+            return;
+        }
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener == null)
+            return;
+        for (String path : added) {
+            listener.contentAdded(path);
+        }
+    }
+
+    private static void notifyContentListChanged() {
+        if (publishSnapshot())
+            return;
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener != null)
+            listener.contentListChanged();
+    }
+
+    // With snapshots, the playable content is published as a new one,
+    // and the listener reloads its playlist from that. Returns false if
+    // snapshots are off.
+    private static boolean publishSnapshot() {
+        if (!ContentSnapshots.isEnabled())
+            return false;
+        // they're all in it
+        synchronized (sDownloaded) {
+            sDownloaded.clear();
+        }
+        List<String> fileNames = new ArrayList<>();
+        List<String> localPaths = new ArrayList<>();
+        getLocalContent(fileNames, localPaths);
+        if (ContentSnapshots.publish(fileNames, localPaths) < 0)
+            return true;
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener != null)
+            listener.contentListChanged();
+        return true;
+    }
+
+    // Makes the previous snapshot current again, until the next sync or
+    // change. Returns false if there is none.
+    public static boolean rollback() {
+        if (!ContentSnapshots.rollback())
+            return false;
+        OnContentChangedListener listener = sOnContentChangedListener;
+        if (listener != null)
+            listener.contentListChanged();
+        return true;
+    }
+
+    // The next sync hashes every file, ignoring the verification ledger.
+    // Creating the deep_verify file in the download path does the same.
+    public static void setDeepVerify(boolean deepVerify) {
+        sDeepVerify = deepVerify;
+    }
+
+    static VerificationLedger getVerificationLedger() {
+        return sVerificationLedger;
+    }
+
+    // sync() loads the ledger of the download path; this is for checking
+    // content outside of a sync, e.g. in tests
+    static void setVerificationLedger(VerificationLedger verificationLedger) {
+        sVerificationLedger = verificationLedger;
+    }
+
+    // null if there are none for fileName
+    static BlockHashes getBlockHashes(String fileName) {
+        return sBlockHashes.get(fileName);
+    }
+
+    // The list is replaced, not modified, so this is the list itself. Use
+    // ContentIndex.peek() to read it without creating every entry.
+    public static List<Content> getContentListSnapshot() {
+        List<Content> contentList = sContentList;
+        if (contentList == null)
+            return new ArrayList<>();
+        return contentList;
+    }
+
+    // Local path of the entry listed as fileName, or null
+    static String findLocalPath(String fileName) {
+        List<Content> contentList = sContentList;
+        if (contentList == null)
+            return null;
+        if (contentList instanceof ContentIndex.ContentList) {
+            ContentIndex index = ((ContentIndex.ContentList) contentList).getIndex();
+            int i = index.find(fileName);
+            return i >= 0 ? index.getLocalPath(i) : null;
         }
         for (Content content : contentList) {
-            content.sync();
+            if (content.getFileName().equals(fileName))
+                return content.mLocalPath;
         }
+        return null;
     }
 
+    // Paths of objects in ContentStore. With snapshots, the player reads
+    // ContentSnapshots instead.
     public static List<String> getLocalContentList() {
-        if (sContentList == null)
-            return new ArrayList<>();
+        List<String> localPaths = new ArrayList<>();
+        getLocalContent(new ArrayList<String>(), localPaths);
+        return localPaths;
+    }
+
+    // Adds the file names and local paths of playable content, in list
+    // order. Entries of an index that sync didn't have to create (see
+    // ContentDelta) are playable once it has assumed them up to date, as
+    // long as their object is still there: it may have been evicted or
+    // deleted since.
+    private static void getLocalContent(List<String> fileNames, List<String> localPaths) {
+        List<Content> contentList = sContentList;
+        if (contentList == null)
+            return;
+
+        // Provisional content counts as local without being hashed here,
+        // and content being downloaded once the download is verified
+        boolean[] known = new boolean[contentList.size()];
+        boolean[] local = new boolean[contentList.size()];
+        List<Content> toVerify = new ArrayList<>();
+        for (int i = 0; i < known.length; i++) {
+            Content content = ContentIndex.peek(contentList, i);
+            if (content == null) {
+                ContentIndex.ContentList indexed = (ContentIndex.ContentList) contentList;
+                known[i] = true;
+                local[i] = indexed.isAssumePresent() && indexed.isPresent(i);
+            } else if (sProvisionalContent.contains(content)) {
+                known[i] = local[i] = true;
+            } else if (sDownloading.contains(content)) {
+                known[i] = true;
+                local[i] = content.isUpToDate();
+            } else {
+                toVerify.add(content);
+            }
+        }
+        boolean[] needsUpdate;
+        try {
+            needsUpdate = VerificationExecutor.needsUpdate(toVerify);
+        } catch (InterruptedIOException e) {
+            return;
+        }
+        for (int i = 0, j = 0; i < known.length; i++) {
+            if (!known[i])
+                local[i] = !needsUpdate[j++];
+            if (local[i]) {
+                fileNames.add(getFileName(contentList, i));
+                localPaths.add(getLocalPath(contentList, i));
+            }
+        }
+    }
 
-        List<String> localList = new ArrayList<>();
-        for (Content content : sContentList) {
-            if (!content.needsUpdate())
-                localList.add(content.mLocalPath);
+    // Of every entry, without creating the Content of indexed ones
+    private static List<String> getLocalPaths(List<Content> contentList) {
+        List<String> localPaths = new ArrayList<>(contentList.size());
+        for (int i = 0; i < contentList.size(); i++) {
+            localPaths.add(getLocalPath(contentList, i));
         }
-        return localList;
+        return localPaths;
+    }
+
+    private static String getFileName(List<Content> contentList, int i) {
+        Content content = ContentIndex.peek(contentList, i);
+        if (content != null)
+            return content.getFileName();
+        return ((ContentIndex.ContentList) contentList).getIndex().getFileName(i);
     }
 
-    private static void parseRemoteContentList() {
+    private static String getLocalPath(List<Content> contentList, int i) {
+        Content content = ContentIndex.peek(contentList, i);
+        if (content != null)
+            return content.mLocalPath;
+        return ((ContentIndex.ContentList) contentList).getIndex().getLocalPath(i);
+    }
+
+    // The list is parsed as it's downloaded and written to a temporary
+    // file alongside. The temporary file replaces the local copy only if
+    // the download completed and produced a non-empty list.
+    //
+    // The ETag and Last-Modified validators of the local copy are kept
+    // in a sidecar file and sent with the request, so an unchanged list
+    // costs a 304 and no parsing. Returns true in that case.
+    //
+    // A new list is compared with the previous one to find what changed.
+    private static boolean parseRemoteContentList() {
+        File localFile = new File(Content.getLocalContentListUrl());
+        File tempFile = new File(localFile.getPath() + ".tmp");
+        File validatorsFile = new File(localFile.getPath() + VALIDATORS_SUFFIX);
+        Properties validators = new Properties();
+        if (localFile.isFile())
+            loadProperties(validators, validatorsFile);
         try {
-            String list = getUrl(Content.getContentListUrl());
-            parseContentList(new StringReader(list));
-            // update local copy, if parsed successfully
-            if (!sContentList.isEmpty())
-                dumpStringToFile(list, new File(Content.getLocalContentListUrl()));
+            //noinspection ResultOfMethodCallIgnored
+            localFile.getParentFile().mkdirs();
+            // from the best mirror that answers, starting over for each
+            ContentListParser parser = null;
+            int responseCode = -1;
+            for (Mirrors.Mirror mirror : Mirrors.getAvailable()) {
+                parser = new ContentListParser(new FileOutputStream(tempFile));
+                responseCode = getContentListBytes(mirror.getUrl(Content.getContentListPath()), parser, validators);
+                if (responseCode > 0 && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR)
+                    break;
+            }
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return true;
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                sContentList = parser.getContentList();
+                if (!sContentList.isEmpty()) {
+                    File indexFile = new File(Content.getLocalContentIndexUrl());
+                    sContentDelta = ContentDelta.compute(ContentIndex.open(indexFile), sContentList);
+                    // validators and index must never describe a different list than the local copy
+                    //noinspection ResultOfMethodCallIgnored
+                    validatorsFile.delete();
+                    //noinspection ResultOfMethodCallIgnored
+                    indexFile.delete();
+                    if (tempFile.renameTo(localFile)) {
+                        storeProperties(validators, validatorsFile);
+                        ContentIndex.write(sContentList, indexFile);
+                    } else
+                        Log.w(TAG, "Failed to update local content list: " + localFile);
+                }
+            }
         } catch (IOException e) {
             Log.e(TAG, "", e);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
         }
+        return false;
     }
 
+    // Prefers the binary index of the local copy, if there is one, and
+    // only creates the entries sync needs from it. Without a usable index,
+    // the text is parsed and the index rebuilt from it.
     private static void parseLocalContentList() {
+        File indexFile = new File(Content.getLocalContentIndexUrl());
+        ContentIndex index = ContentIndex.open(indexFile);
+        if (index != null) {
+            sContentList = index.asContentList();
+            sContentDelta = ContentDelta.unchanged(sContentList);
+            return;
+        }
+
+        InputStream in = null;
+        ContentListParser parser = new ContentListParser(null);
+        boolean complete = false;
         try {
-            parseContentList(new FileReader(new File(Content.getLocalContentListUrl())));
+            in = new FileInputStream(Content.getLocalContentListUrl());
+            int bytesRead;
+            byte[] buffer = new byte[32 * 1024];
+            while ((bytesRead = in.read(buffer)) > 0) {
+                parser.write(buffer, 0, bytesRead);
+            }
+            parser.close();
+            complete = true;
         } catch (IOException e) {
             Log.e(TAG, "", e);
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {
+            }
         }
+        sContentList = parser.getContentList();
+        sContentDelta = ContentDelta.unchanged(sContentList);
+        if (complete && !sContentList.isEmpty())
+            ContentIndex.write(sContentList, indexFile);
     }
 
-    private static void parseContentList(Reader reader) {
-        sContentList = new ArrayList<>();
+    // Block hashes are optional. Without them, damaged files are
+    // downloaded whole. Fetched like the content list, but not parsed
+    // until it's complete.
+    private static void loadBlockHashes() {
+        File localFile = new File(Content.getLocalBlockHashesUrl());
+        File tempFile = new File(localFile.getPath() + ".tmp");
+        File validatorsFile = new File(localFile.getPath() + VALIDATORS_SUFFIX);
+        Properties validators = new Properties();
+        if (localFile.isFile())
+            loadProperties(validators, validatorsFile);
         try {
-            BufferedReader bufferedReader = new BufferedReader(reader);
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                try {
-                    if (line.isEmpty())
-                        continue;
-                    sContentList.add(new Content(line));
-                } catch (IllegalArgumentException e) {
-                    Log.e(TAG, "", e);
-                }
+            int responseCode = -1;
+            for (Mirrors.Mirror mirror : Mirrors.getAvailable()) {
+                responseCode = getContentListBytes(mirror.getUrl(Content.getBlockHashesPath()),
+                        new FileOutputStream(tempFile), validators);
+                if (responseCode > 0 && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR)
+                    break;
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                //noinspection ResultOfMethodCallIgnored
+                validatorsFile.delete();
+                if (tempFile.renameTo(localFile))
+                    storeProperties(validators, validatorsFile);
+            } else if (responseCode == HttpURLConnection.HTTP_NOT_FOUND) {
+                //noinspection ResultOfMethodCallIgnored
+                localFile.delete();
+                //noinspection ResultOfMethodCallIgnored
+                validatorsFile.delete();
             }
         } catch (IOException e) {
             Log.e(TAG, "", e);
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
         }
+        if (localFile.isFile())
+            sBlockHashes = BlockHashes.parse(localFile);
+        else
+            sBlockHashes = new HashMap<>();
     }
 
+    // Also sets sContentDelta, describing what needs to be synced
     private static List<Content> getContentList() {
-        parseRemoteContentList();
+        sContentDelta = null;
+        // Unchanged on the server: keep what's in memory, already verified
+        if (parseRemoteContentList() && sContentList != null && !sContentList.isEmpty()) {
+            sContentDelta = ContentDelta.unchanged(sContentList);
+            return sContentList;
+        }
         if (sContentList == null || sContentList.isEmpty())
             parseLocalContentList();
+        if (sContentDelta == null)
+            sContentDelta = ContentDelta.unchanged(sContentList);
         return sContentList;
     }
 
-    private static byte[] getUrlBytes(String urlSpec) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        if (getUrlBytes(urlSpec, out, 0))
-            return out.toByteArray();
-        return new byte[0];
-    }
-
     // outputStream will be closed
+    //
+    // If totalBytes is known (greater than 0), the download fails, early if
+    // possible, unless exactly that many bytes arrive.
     public static boolean getUrlBytes(String urlSpec, OutputStream outputStream, long totalBytes) throws IOException {
         if (urlSpec == null || outputStream == null)
             return false;
         downloadStarted(urlSpec, totalBytes);
-        URL url = new URL(urlSpec);
-        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        HttpURLConnection connection = HttpConnections.open(urlSpec);
+        boolean reusable = true;
         try {
-            InputStream in = connection.getInputStream();
+            // Content-Length must be the size of the content itself
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            long requestStart = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            Mirrors.responded(urlSpec, responseCode, System.nanoTime() - requestStart);
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                return false;
 
-            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK)
+            long contentLength = getContentLength(connection);
+            if (totalBytes > 0 && contentLength >= 0 && contentLength != totalBytes) {
+                Log.e(TAG, "Expected " + totalBytes + " bytes, server has " + contentLength + ": " + urlSpec);
                 return false;
+            }
 
-            int bytesRead;
-            long totalBytesRead = 0;
-            byte[] buffer = new byte[32 * 1024];
-            while ((bytesRead = in.read(buffer)) > 0) {
-                totalBytesRead += bytesRead;
-                downloadProgress(totalBytesRead);
-                outputStream.write(buffer, 0, bytesRead);
+            long transferStart = System.nanoTime();
+            long totalBytesRead = copyStream(connection.getInputStream(), outputStream);
+            downloadFinished(totalBytesRead);
+            if (totalBytes > 0 && totalBytesRead != totalBytes) {
+                Mirrors.failed(urlSpec, null);
+                return false;
+            }
+            Mirrors.completed(urlSpec, totalBytesRead, System.nanoTime() - transferStart);
+            return true;
+        } catch (Exception e) {
+            reusable = false;
+            failed(urlSpec, e);
+        } finally {
+            outputStream.close();
+            HttpConnections.release(connection, reusable);
+        }
+        return false;
+    }
+
+    // A full volume isn't the mirror's fault, and shouldn't pass quietly
+    private static void failed(String urlSpec, Exception e) {
+        if (StorageQuota.isOutOfSpace(e))
+            Log.e(TAG, "Out of space downloading " + urlSpec);
+        else
+            Mirrors.failed(urlSpec, e);
+    }
+
+    // Where a resumable download goes. open() is called once the response
+    // shows where the content starts: at the requested offset, or at 0 if
+    // the whole content is coming. validators are those of the response.
+    public interface ResumeTarget {
+        OutputStream open(long offset, Properties validators) throws IOException;
+    }
+
+    // Like getUrlBytes(), but asks for the bytes from offset on with
+    // Range, provided the content still matches validators (If-Range).
+    // If the server ignores the range or the content has changed, it
+    // sends everything and target is opened at 0 instead. Without a
+    // usable validator the range is asked for unconditionally, so the
+    // caller must verify the result, e.g. against the content's digest.
+    //
+    // validators are replaced by those of the response before target is
+    // opened. The stream target returns will be closed.
+    public static boolean resumeUrlBytes(String urlSpec, ResumeTarget target, long offset,
+                                         long totalBytes, Properties validators) throws IOException {
+        if (urlSpec == null || target == null)
+            return false;
+        // If-Range only works with a strong ETag or a date
+        String ifRange = validators.getProperty(ETAG);
+        if (ifRange == null || ifRange.startsWith("W/"))
+            ifRange = validators.getProperty(LAST_MODIFIED);
+        if (offset >= totalBytes)
+            offset = 0;
+        downloadStarted(urlSpec, totalBytes);
+        HttpURLConnection connection = HttpConnections.open(urlSpec);
+        boolean reusable = true;
+        OutputStream outputStream = null;
+        try {
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+                if (ifRange != null)
+                    connection.setRequestProperty("If-Range", ifRange);
+            }
+            long requestStart = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            Mirrors.responded(urlSpec, responseCode, System.nanoTime() - requestStart);
+            long start;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                if (contentRange == null || !contentRange.trim().equals(
+                        "bytes " + offset + "-" + (totalBytes - 1) + "/" + totalBytes))
+                    return false;
+                start = offset;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                long contentLength = getContentLength(connection);
+                if (contentLength >= 0 && contentLength != totalBytes) {
+                    Log.e(TAG, "Expected " + totalBytes + " bytes, server has " + contentLength + ": " + urlSpec);
+                    return false;
+                }
+                if (offset > 0)
+                    Log.i(TAG, "Not resumed, starting over: " + urlSpec);
+                start = 0;
+            } else {
+                return false;
             }
+
+            validators.clear();
+            String eTag = connection.getHeaderField(ETAG);
+            if (eTag != null)
+                validators.setProperty(ETAG, eTag);
+            String lastModified = connection.getHeaderField(LAST_MODIFIED);
+            if (lastModified != null)
+                validators.setProperty(LAST_MODIFIED, lastModified);
+
+            outputStream = target.open(start, validators);
+            long transferStart = System.nanoTime();
+            // only the WAN link is shaped
+            long totalBytesRead = start + copyStream(connection.getInputStream(), outputStream, start,
+                    !PeerSharing.isPeerUrl(urlSpec));
             downloadFinished(totalBytesRead);
+            if (totalBytesRead != totalBytes) {
+                Mirrors.failed(urlSpec, null);
+                return false;
+            }
+            Mirrors.completed(urlSpec, totalBytesRead - start, System.nanoTime() - transferStart);
             return true;
-        } catch (Exception ignored) {
+        } catch (Exception e) {
+            reusable = false;
+            failed(urlSpec, e);
+        } finally {
+            if (outputStream != null)
+                outputStream.close();
+            HttpConnections.release(connection, reusable);
+        }
+        return false;
+    }
+
+    // Fetches bytes start to end, inclusive, of urlSpec. Fails unless the
+    // server sends exactly that range. outputStream will be closed.
+    public static boolean getUrlRange(String urlSpec, OutputStream outputStream,
+                                      long start, long end) throws IOException {
+        if (urlSpec == null || outputStream == null)
+            return false;
+        final long totalBytes = end - start + 1;
+        downloadStarted(urlSpec, totalBytes);
+        HttpURLConnection connection = HttpConnections.open(urlSpec);
+        boolean reusable = true;
+        try {
+            // ranges of an encoded response wouldn't be ranges of the file
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+            long requestStart = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            Mirrors.responded(urlSpec, responseCode, System.nanoTime() - requestStart);
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL)
+                return false;
+            String contentRange = connection.getHeaderField("Content-Range");
+            if (contentRange == null || !contentRange.trim().startsWith("bytes " + start + "-" + end + "/"))
+                return false;
+
+            long transferStart = System.nanoTime();
+            long totalBytesRead = copyStream(connection.getInputStream(), outputStream);
+            downloadFinished(totalBytesRead);
+            if (totalBytesRead != totalBytes) {
+                Mirrors.failed(urlSpec, null);
+                return false;
+            }
+            Mirrors.completed(urlSpec, totalBytesRead, System.nanoTime() - transferStart);
+            return true;
+        } catch (Exception e) {
+            reusable = false;
+            failed(urlSpec, e);
         } finally {
             outputStream.close();
-            connection.disconnect();
+            HttpConnections.release(connection, reusable);
         }
         return false;
     }
 
-    private static String getUrl(String urlSpec) throws IOException {
-        return new String(getUrlBytes(urlSpec));
+    // Conditional, gzip-negotiated GET. Validators from the previous
+    // response are sent and, on 200, replaced by the new ones. Returns
+    // the response code or -1 on failure. outputStream will be closed.
+    private static int getContentListBytes(String urlSpec, OutputStream outputStream,
+                                           Properties validators) throws IOException {
+        downloadStarted(urlSpec, 0);
+        HttpURLConnection connection = HttpConnections.open(urlSpec);
+        boolean reusable = true;
+        try {
+            // Setting this explicitly turns off transparent decompression
+            // on Android, so the stream is unwrapped below in either case.
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            String eTag = validators.getProperty(ETAG);
+            if (eTag != null)
+                connection.setRequestProperty("If-None-Match", eTag);
+            String lastModified = validators.getProperty(LAST_MODIFIED);
+            if (lastModified != null)
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+
+            long requestStart = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            Mirrors.responded(urlSpec, responseCode, System.nanoTime() - requestStart);
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                if (responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR)
+                    Mirrors.completed(urlSpec, 0, 0);
+                return responseCode;
+            }
+
+            InputStream in = connection.getInputStream();
+            if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+                in = new GZIPInputStream(in);
+            long transferStart = System.nanoTime();
+            long totalBytesRead = copyStream(in, outputStream);
+            downloadFinished(totalBytesRead);
+            Mirrors.completed(urlSpec, totalBytesRead, System.nanoTime() - transferStart);
+
+            validators.clear();
+            eTag = connection.getHeaderField(ETAG);
+            if (eTag != null)
+                validators.setProperty(ETAG, eTag);
+            lastModified = connection.getHeaderField(LAST_MODIFIED);
+            if (lastModified != null)
+                validators.setProperty(LAST_MODIFIED, lastModified);
+            return responseCode;
+        } catch (Exception e) {
+            reusable = false;
+            failed(urlSpec, e);
+        } finally {
+            outputStream.close();
+            HttpConnections.release(connection, reusable);
+        }
+        return -1;
+    }
+
+    // -1 if unknown. getContentLength() is an int and
+    // getContentLengthLong() needs API 24.
+    private static long getContentLength(HttpURLConnection connection) {
+        String contentLength = connection.getHeaderField("Content-Length");
+        if (contentLength == null)
+            return -1;
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private static void downloadStarted(String urlSpec, long totalBytes) {
+    // Returns the number of bytes copied
+    private static long copyStream(InputStream in, OutputStream outputStream) throws IOException {
+        return copyStream(in, outputStream, 0, true);
+    }
+
+    // Progress includes the bytesAlreadyRead of a resumed download. Unless
+    // shaped is false, BandwidthLimiter applies.
+    //
+    // Each read waits for some bytes, then takes whatever else has already
+    // arrived, up to the buffer size, and passes it all on at once. So a
+    // fast transfer is written and hashed in large chunks, with few calls,
+    // and a slow one isn't held back.
+    private static long copyStream(InputStream in, OutputStream outputStream,
+                                   long bytesAlreadyRead, boolean shaped) throws IOException {
+        int bytesRead;
+        long totalBytesRead = 0;
+        byte[] buffer = sCopyBuffer.get();
+        TokenBucket connectionBucket = shaped ? BandwidthLimiter.newConnectionBucket() : null;
+        while ((bytesRead = in.read(buffer)) > 0) {
+            int count = bytesRead;
+            while (count < buffer.length && in.available() > 0
+                    && (bytesRead = in.read(buffer, count, buffer.length - count)) > 0)
+                count += bytesRead;
+            if (shaped)
+                BandwidthLimiter.acquire(connectionBucket, count);
+            totalBytesRead += count;
+            sBytesReceived.addAndGet(count);
+            downloadProgress(bytesAlreadyRead + totalBytesRead);
+            outputStream.write(buffer, 0, count);
+        }
+        return totalBytesRead;
+    }
+
+    static long getBytesReceived() {
+        return sBytesReceived.get();
+    }
+
+    // Downloads may run concurrently (see DownloadScheduler). The listener
+    // is told about each of them, but only the most recently started one
+    // reports progress.
+    private static synchronized void downloadStarted(String urlSpec, long totalBytes) {
+        sProgressThread = Thread.currentThread();
         if (sOnSyncProgressListener != null)
             sOnSyncProgressListener.downloadStarted(urlSpec, totalBytes);
         //Log.i(TAG, "Downloading: " + urlSpec);
     }
 
-    private static void downloadProgress(long bytes) {
+    // Called by DownloadScheduler as it starts downloading content
+    static synchronized void contentStarted(Content content) {
         if (sOnSyncProgressListener != null)
+            sOnSyncProgressListener.contentStarted(content.getFileName());
+    }
+
+    private static synchronized void downloadProgress(long bytes) {
+        if (sOnSyncProgressListener != null && sProgressThread == Thread.currentThread())
             sOnSyncProgressListener.downloadProgress(bytes);
     }
 
     @SuppressWarnings("UnusedParameters")
-    private static void downloadFinished(long bytes) {
+    private static synchronized void downloadFinished(long bytes) {
         //Log.i(TAG, "Finished, bytes = " + bytes);
         if (sOnSyncProgressListener != null)
             sOnSyncProgressListener.downloadFinished();
     }
 
+    static void loadProperties(Properties properties, File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static void storeProperties(Properties properties, File file) {
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            properties.store(out, null);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
     public static void dumpStringToFile(String text, File file)
     {
         FileOutputStream out = null;
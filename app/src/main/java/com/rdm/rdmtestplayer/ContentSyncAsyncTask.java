@@ -71,10 +71,13 @@ class ContentSyncAsyncTask extends AsyncTask<String, String, Void> {
             mCompleteProgress.setMax(Integer.valueOf(values[1]));
             mCompleteProgress.setProgress(0);
         }
+        if (values[0].equals("c")) {
+            mCompleteProgress.incrementProgressBy(1);
+            return;
+        }
         if (values[0].equals("d")) {
             mProgressStepName.setText(values[1]);
             mStepProgress.setProgress(0);
-            mCompleteProgress.incrementProgressBy(1);
             return;
         }
         if (values[0].equals("p")) {
@@ -134,6 +137,11 @@ class ContentSyncAsyncTask extends AsyncTask<String, String, Void> {
             publishProgress("n", "" + numberOfDownloads);
         }
 
+        @Override
+        public void contentStarted(String fileName) {
+            publishProgress("c", fileName);
+        }
+
         @Override
         public void downloadStarted(String url, long totalBytes) {
             mNextUpdateTime = 0L;
@@ -166,5 +174,11 @@ class ContentSyncAsyncTask extends AsyncTask<String, String, Void> {
         public void downloadFinished() {
             publishProgress("e");
         }
+
+        @Override
+        public void insufficientSpace(int numberOfDownloads, long totalBytes) {
+            publishProgress("x", "Not enough space, skipping " + numberOfDownloads + " downloads ("
+                    + totalBytes / (1024 * 1024) + " MB)\n");
+        }
     };
 }
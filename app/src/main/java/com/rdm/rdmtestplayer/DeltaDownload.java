@@ -0,0 +1,228 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Builds a changed file from its previous version, downloading only the
+ * blocks that aren't in it, the way rsync and zsync do. A re-exported
+ * clip with a new end card mostly has the same bytes, but at shifted
+ * offsets, since the index at the front of an MP4 changes size.
+ *
+ * The server can't compute a delta, so the new file's block hashes
+ * describe it: a rolling checksum and a strong hash per block (see
+ * BlockHashes). The old file is scanned byte by byte with the rolling
+ * checksum, which moves one byte in constant time. Where it matches a
+ * block's, the strong hash decides. Found blocks are copied from the old
+ * file, and the rest is fetched in as few Range requests as possible.
+ *
+ * The result is only as good as the block hashes; the caller verifies
+ * the whole file against the content list, as for any download.
+ */
+class DeltaDownload {
+    private static final String TAG = "DeltaDownload";
+
+    // Patching isn't worth the extra requests for less reuse than this
+    private static final double MIN_REUSED_FRACTION = 0.1d;
+    private static final int MIN_BUFFER_SIZE = 1024 * 1024;
+    // Bits of the rolling checksum in the filter that spares most
+    // positions a map lookup
+    private static final int FILTER_BITS = 20;
+
+    // rsync's weak checksum: a is the sum of the bytes and b the sum of
+    // the running sums, both mod 2^16; the checksum is a + (b << 16)
+    public static int rollingSum(byte[] buffer, int offset, int count) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < count; i++) {
+            a += buffer[offset + i] & 0xff;
+            b += a;
+        }
+        return (a & 0xffff) | (b << 16);
+    }
+
+    // Fills file with the content blockHashes describe, taking what it
+    // can from seed and fetching the rest of remotePath from a mirror.
+    // Returns false, leaving file as it may be, if that isn't possible
+    // or not worth it. The content isn't verified.
+    public static boolean download(String remotePath, File seed, File file, long size,
+                                   BlockHashes blockHashes) throws IOException {
+        long[] sources;
+        try {
+            sources = findBlocks(seed, size, blockHashes);
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "", e);
+            return false;
+        }
+        int blockSize = blockHashes.getBlockSize();
+        long reused = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (sources[i] >= 0)
+                reused += getLength(i, blockSize, size);
+        }
+        if (reused < MIN_REUSED_FRACTION * size)
+            return false;
+        Mirrors.Mirror mirror = Mirrors.choose();
+        if (mirror == null)
+            return false;
+
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        FileInputStream in = new FileInputStream(seed);
+        try {
+            StorageQuota.preallocated(file, FileChannelOutputStream.preallocate(out, size));
+            FileChannel outChannel = out.getChannel();
+            FileChannel seedChannel = in.getChannel();
+            int ranges = 0;
+            for (int first = 0; first < sources.length; ) {
+                // runs of blocks that are contiguous in the seed, or missing
+                int last = first;
+                while (last + 1 < sources.length && (sources[first] < 0
+                        ? sources[last + 1] < 0
+                        : sources[last + 1] == sources[last] + blockSize))
+                    last++;
+                long start = (long) first * blockSize;
+                long length = (long) last * blockSize + getLength(last, blockSize, size) - start;
+                if (sources[first] >= 0) {
+                    seedChannel.position(sources[first]);
+                    for (long copied = 0; copied < length; ) {
+                        long count = outChannel.transferFrom(seedChannel, start + copied, length - copied);
+                        if (count <= 0)
+                            throw new IOException("Seed ended early: " + seed);
+                        copied += count;
+                    }
+                } else {
+                    ranges++;
+                    if (!ContentSync.getUrlRange(mirror.getUrl(remotePath),
+                            new FileRegionOutputStream(outChannel, start), start, start + length - 1))
+                        return false;
+                }
+                first = last + 1;
+            }
+            outChannel.force(false);
+            Log.i(TAG, "Patched " + remotePath + ": reused " + reused + " of " + size + " bytes, fetched "
+                    + (size - reused) + " in " + ranges + " ranges");
+        } finally {
+            in.close();
+            out.close();
+        }
+        return true;
+    }
+
+    // For each block of the new file, where in seed it is, or -1. The
+    // last block is only found if it's full size.
+    static long[] findBlocks(File seed, long size, BlockHashes blockHashes)
+            throws IOException, NoSuchAlgorithmException {
+        final int blockSize = blockHashes.getBlockSize();
+        long[] sources = new long[blockHashes.getBlockCount()];
+        Arrays.fill(sources, -1);
+        long seedLength = seed.length();
+        if (seedLength < blockSize)
+            return sources;
+
+        // rolling checksum -> blocks with it
+        Map<Integer, List<Integer>> blocks = new HashMap<>();
+        long[] filter = new long[1 << (FILTER_BITS - 6)];
+        int remaining = 0;
+        for (int i = 0; i < sources.length; i++) {
+            if (getLength(i, blockSize, size) != blockSize)
+                continue;
+            int sum = blockHashes.getRollingSum(i);
+            List<Integer> list = blocks.get(sum);
+            if (list == null) {
+                list = new ArrayList<>(1);
+                blocks.put(sum, list);
+            }
+            list.add(i);
+            int bit = filterBit(sum);
+            filter[bit >>> 6] |= 1L << bit;
+            remaining++;
+        }
+
+        ContentDigest digest = ContentHasher.getDigest(blockHashes.getHashAlgorithm());
+        byte[] buffer = new byte[Math.max(4 * blockSize, MIN_BUFFER_SIZE)];
+        InputStream in = new FileInputStream(seed);
+        try {
+            // buffer[0] is at bufferStart in seed, and filled bytes are valid
+            long bufferStart = 0;
+            int filled = 0;
+            long position = 0;
+            int a = 0;
+            int b = 0;
+            boolean fresh = true;
+            while (remaining > 0 && position + blockSize <= seedLength) {
+                // the window and the byte after it must be in the buffer
+                int offset = (int) (position - bufferStart);
+                if (offset + blockSize + 1 > filled && bufferStart + filled < seedLength) {
+                    System.arraycopy(buffer, offset, buffer, 0, filled - offset);
+                    filled -= offset;
+                    bufferStart = position;
+                    offset = 0;
+                    int bytesRead;
+                    while (filled < buffer.length && (bytesRead = in.read(buffer, filled, buffer.length - filled)) > 0)
+                        filled += bytesRead;
+                }
+                if (fresh) {
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < blockSize; i++) {
+                        a += buffer[offset + i] & 0xff;
+                        b += a;
+                    }
+                    fresh = false;
+                }
+                int sum = (a & 0xffff) | (b << 16);
+                int bit = filterBit(sum);
+                List<Integer> candidates = (filter[bit >>> 6] & (1L << bit)) != 0 ? blocks.get(sum) : null;
+                boolean matched = false;
+                if (candidates != null) {
+                    digest.reset();
+                    digest.update(buffer, offset, blockSize);
+                    String hash = ContentHasher.toHexString(digest.digest());
+                    for (int block : candidates) {
+                        if (sources[block] < 0 && blockHashes.getHash(block).equalsIgnoreCase(hash)) {
+                            sources[block] = position;
+                            remaining--;
+                            matched = true;
+                        }
+                    }
+                }
+                if (matched) {
+                    // blocks don't overlap in the new file, so skip past this one
+                    position += blockSize;
+                    fresh = true;
+                    continue;
+                }
+                if (position + blockSize >= seedLength)
+                    break;
+                // roll one byte: drop buffer[offset], add buffer[offset + blockSize]
+                int out = buffer[offset] & 0xff;
+                a += (buffer[offset + blockSize] & 0xff) - out;
+                b += a - blockSize * out;
+                position++;
+            }
+        } finally {
+            in.close();
+        }
+        return sources;
+    }
+
+    private static int getLength(int block, int blockSize, long size) {
+        return (int) Math.min(blockSize, size - (long) block * blockSize);
+    }
+
+    private static int filterBit(int sum) {
+        return (sum ^ (sum >>> FILTER_BITS)) & ((1 << FILTER_BITS) - 1);
+    }
+}
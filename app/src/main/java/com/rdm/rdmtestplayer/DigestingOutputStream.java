@@ -0,0 +1,42 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Passes bytes on to another stream and feeds them to a ContentDigest on
+ * the way, so content can be verified as it's downloaded instead of being
+ * read back afterwards.
+ */
+class DigestingOutputStream extends FilterOutputStream {
+    private final ContentDigest mDigest;
+    private long mByteCount = 0;
+
+    public DigestingOutputStream(OutputStream out, ContentDigest digest) {
+        super(out);
+        mDigest = digest;
+    }
+
+    public ContentDigest getDigest() {
+        return mDigest;
+    }
+
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        out.write(oneByte);
+        mDigest.update(new byte[]{(byte) oneByte}, 0, 1);
+        mByteCount++;
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        out.write(buffer, offset, count);
+        mDigest.update(buffer, offset, count);
+        mByteCount += count;
+    }
+}
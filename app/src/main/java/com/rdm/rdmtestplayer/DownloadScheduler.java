@@ -0,0 +1,224 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Downloads content several files at a time. How many run at once is
+ * adjusted as it goes, AIMD style: after every window of measurement, one
+ * more download is allowed if aggregate throughput went up without
+ * errors, and the number is halved if there were errors or throughput
+ * dropped. It never exceeds the maximum concurrency. Throughput is what
+ * all downloads received in the window (ContentSync.getBytesReceived()),
+ * so a large file counts while it downloads, not just when it's done.
+ *
+ * Each file is still downloaded and verified by its own Content, so
+ * concurrency doesn't change what ends up on disk. Each one is handed to
+ * ContentSync as soon as it's verified, so it can play right away.
+ *
+ * prioritize() decides the order: entries with a deadline (setDeadline())
+ * first, earliest first; then smaller files before larger ones, by size
+ * class, so the playlist fills quickly; then playlist order.
+ */
+class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    private static final int DEFAULT_MAX_CONCURRENCY = 4;
+    private static final long WINDOW_IN_NANOS = 2000000000L; // 2 seconds
+    // Throughput changes smaller than this are noise
+    private static final double THROUGHPUT_TOLERANCE = 0.05;
+    // Size classes for prioritize() grow by a factor of 4 from 1 MB
+    private static final int SIZE_CLASS_BASE_SHIFT = 20;
+
+    private static int sMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+    // File name -> deadline, in ms since the epoch
+    private static final Map<String, Long> sDeadlines = new HashMap<>();
+
+    private int mConcurrency = 1;
+    private long mWindowStart;
+    // ContentSync.getBytesReceived() at mWindowStart
+    private long mWindowStartBytes;
+    private int mWindowErrors = 0;
+    private double mLastThroughput = 0.0d;
+
+    // 1 downloads strictly one file at a time
+    public static void setMaxConcurrency(int maxConcurrency) {
+        sMaxConcurrency = Math.max(maxConcurrency, 1);
+    }
+
+    public static int getMaxConcurrency() {
+        return sMaxConcurrency;
+    }
+
+    public int getConcurrency() {
+        return mConcurrency;
+    }
+
+    // The entry should be ready by deadlineMillis, e.g. because it's
+    // scheduled to play then
+    public static void setDeadline(String fileName, long deadlineMillis) {
+        synchronized (sDeadlines) {
+            sDeadlines.put(fileName, deadlineMillis);
+        }
+    }
+
+    public static void clearDeadlines() {
+        synchronized (sDeadlines) {
+            sDeadlines.clear();
+        }
+    }
+
+    // contentList in download order. playlist gives the playlist order.
+    public static List<Content> prioritize(List<Content> contentList, List<Content> playlist) {
+        final Map<Content, Integer> positions = new HashMap<>();
+        if (playlist instanceof ContentIndex.ContentList) {
+            // finds them without creating the rest of the list
+            for (Content content : contentList) {
+                int position = playlist.indexOf(content);
+                if (position >= 0)
+                    positions.put(content, position);
+            }
+        } else {
+            for (int i = 0; i < playlist.size(); i++) {
+                positions.put(playlist.get(i), i);
+            }
+        }
+        final Map<Content, Long> deadlines = new HashMap<>();
+        synchronized (sDeadlines) {
+            for (Content content : contentList) {
+                Long deadline = sDeadlines.get(content.getFileName());
+                deadlines.put(content, deadline != null ? deadline : Long.MAX_VALUE);
+            }
+        }
+        List<Content> ordered = new ArrayList<>(contentList);
+        Collections.sort(ordered, new Comparator<Content>() {
+            @Override
+            public int compare(Content lhs, Content rhs) {
+                int result = Compat.compare(deadlines.get(lhs), deadlines.get(rhs));
+                if (result == 0)
+                    result = getSizeClass(lhs.getSizeInBytes()) - getSizeClass(rhs.getSizeInBytes());
+                if (result == 0)
+                    result = getPosition(lhs) - getPosition(rhs);
+                return result;
+            }
+
+            private int getPosition(Content content) {
+                Integer position = positions.get(content);
+                return position != null ? position : Integer.MAX_VALUE;
+            }
+        });
+        return ordered;
+    }
+
+    private static int getSizeClass(long sizeInBytes) {
+        long units = Math.max(sizeInBytes >> SIZE_CLASS_BASE_SHIFT, 1);
+        return (63 - Long.numberOfLeadingZeros(units)) / 2;
+    }
+
+    // Downloads every entry, whether or not others fail
+    public void download(List<Content> contentList) throws InterruptedIOException {
+        final int maxConcurrency = Math.min(sMaxConcurrency, contentList.size());
+        if (maxConcurrency <= 1) {
+            for (Content content : contentList) {
+                downloadOne(content);
+                if (content.isUpToDate())
+                    ContentSync.contentDownloaded(content);
+            }
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(maxConcurrency, sThreadFactory);
+        CompletionService<Content> completionService = new ExecutorCompletionService<>(executor);
+        try {
+            int next = 0;
+            int active = 0;
+            mWindowStart = System.nanoTime();
+            mWindowStartBytes = ContentSync.getBytesReceived();
+            while (next < contentList.size() || active > 0) {
+                while (active < Math.min(mConcurrency, maxConcurrency) && next < contentList.size()) {
+                    final Content content = contentList.get(next++);
+                    completionService.submit(new Callable<Content>() {
+                        @Override
+                        public Content call() {
+                            downloadOne(content);
+                            return content;
+                        }
+                    });
+                    active++;
+                }
+                // wakes up at the end of the window, whether or not a
+                // download finished
+                Future<Content> future = completionService.poll(
+                        Math.max(mWindowStart + WINDOW_IN_NANOS - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (future != null) {
+                    active--;
+                    completed(future.get());
+                }
+                adjust(maxConcurrency);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Download interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void downloadOne(Content content) {
+        ContentSync.contentStarted(content);
+        try {
+            content.download();
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+        }
+    }
+
+    private void completed(Content content) {
+        if (content.isUpToDate())
+            ContentSync.contentDownloaded(content);
+        else
+            mWindowErrors++;
+    }
+
+    // At the end of each window
+    private void adjust(int maxConcurrency) {
+        long now = System.nanoTime();
+        if (now - mWindowStart < WINDOW_IN_NANOS)
+            return;
+        long bytes = ContentSync.getBytesReceived();
+        double throughput = (bytes - mWindowStartBytes) * 1e9d / (now - mWindowStart);
+        int concurrency = mConcurrency;
+        if (mWindowErrors > 0 || throughput < mLastThroughput * (1.0d - THROUGHPUT_TOLERANCE))
+            concurrency = Math.max(concurrency / 2, 1);
+        else if (throughput > mLastThroughput * (1.0d + THROUGHPUT_TOLERANCE))
+            concurrency = Math.min(concurrency + 1, maxConcurrency);
+        if (concurrency != mConcurrency)
+            Log.i(TAG, "Concurrency " + mConcurrency + " -> " + concurrency + " at "
+                    + (long) throughput + " B/s, " + mWindowErrors + " errors");
+        mConcurrency = concurrency;
+        mLastThroughput = throughput;
+        mWindowStart = now;
+        mWindowStartBytes = bytes;
+        mWindowErrors = 0;
+    }
+
+    private static final ThreadFactory sThreadFactory = new NamedThreadFactory(TAG);
+}
@@ -0,0 +1,133 @@
+package com.rdm.rdmtestplayer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Writes a download to its file through the file's channel.
+ *
+ * The file is preallocated to the size of the content first, with
+ * posix_fallocate() from API 21, so a full volume fails the download at
+ * once instead of partway through, and the file system can give it
+ * contiguous blocks. Older versions, and file systems without it (e.g.
+ * vfat), only set the length, which leaves a sparse file: StorageQuota is
+ * told which, since a sparse file takes space only as it's written.
+ * close() truncates what wasn't written.
+ *
+ * Writes aren't synced as they go. The file is fsynced once it's
+ * complete, before it's renamed into place, and every sync interval
+ * (setSyncInterval()), after which the listener is told how much of it a
+ * download can resume from: with preallocation, the file's length says
+ * nothing about that if the process dies.
+ */
+class FileChannelOutputStream extends OutputStream {
+    private static final long DEFAULT_SYNC_INTERVAL_IN_BYTES = 16 * 1024 * 1024;
+
+    private static long sSyncIntervalInBytes = DEFAULT_SYNC_INTERVAL_IN_BYTES;
+
+    interface OnCheckpointListener {
+        // The first length bytes are written, and synced if the stream
+        // isn't closing
+        void checkpoint(long length);
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSizeInBytes;
+    private final OnCheckpointListener mListener;
+    private long mPosition;
+    private long mNextSync;
+
+    // 0 or less syncs only complete files
+    public static void setSyncInterval(long syncIntervalInBytes) {
+        sSyncIntervalInBytes = syncIntervalInBytes;
+    }
+
+    // Writes content of sizeInBytes to file from offset on. Whatever the
+    // file has after offset is dropped. listener may be null.
+    public FileChannelOutputStream(File file, long offset, long sizeInBytes,
+                                   OnCheckpointListener listener) throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            mChannel.truncate(offset);
+            if (sizeInBytes > offset)
+                StorageQuota.preallocated(file, preallocate(mFile, sizeInBytes));
+        } catch (IOException e) {
+            mFile.close();
+            throw e;
+        }
+        mSizeInBytes = sizeInBytes;
+        mListener = listener;
+        mPosition = offset;
+        mNextSync = offset + sSyncIntervalInBytes;
+    }
+
+    // Makes file sizeInBytes long, with its blocks allocated if possible.
+    // Returns false if they aren't, and the file is sparse.
+    public static boolean preallocate(RandomAccessFile file, long sizeInBytes) throws IOException {
+        // allocating never shrinks a file
+        if (file.length() > sizeInBytes)
+            file.setLength(sizeInBytes);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && allocate(file, sizeInBytes))
+            return true;
+        file.setLength(sizeInBytes);
+        return false;
+    }
+
+    // Returns false if the file system can't
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean allocate(RandomAccessFile file, long sizeInBytes) throws IOException {
+        try {
+            Os.posix_fallocate(file.getFD(), 0, sizeInBytes);
+            return true;
+        } catch (ErrnoException e) {
+            if (e.errno == OsConstants.ENOSPC)
+                throw new IOException("Can't preallocate " + sizeInBytes + " bytes: ENOSPC (No space left on device)");
+            return false;
+        }
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[]{(byte) oneByte}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, offset, count);
+        while (source.hasRemaining()) {
+            mPosition += mChannel.write(source, mPosition);
+        }
+        if (sSyncIntervalInBytes > 0 && mPosition >= mNextSync && mPosition < mSizeInBytes) {
+            mChannel.force(false);
+            mNextSync = mPosition + sSyncIntervalInBytes;
+            if (mListener != null)
+                mListener.checkpoint(mPosition);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mPosition >= mSizeInBytes)
+                mChannel.force(false);
+            else
+                mChannel.truncate(mPosition);
+            if (mListener != null)
+                mListener.checkpoint(mPosition);
+        } finally {
+            mFile.close();
+        }
+    }
+}
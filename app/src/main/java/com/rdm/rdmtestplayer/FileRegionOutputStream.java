@@ -0,0 +1,40 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Writes to a FileChannel at consecutive positions, starting at a given
+ * offset, without moving the channel's own position. Several of these
+ * can share one channel to fill different regions of a file.
+ *
+ * close() does not close the channel.
+ */
+class FileRegionOutputStream extends OutputStream {
+    private final FileChannel mChannel;
+    private long mPosition;
+
+    public FileRegionOutputStream(FileChannel channel, long position) {
+        mChannel = channel;
+        mPosition = position;
+    }
+
+    public long getPosition() {
+        return mPosition;
+    }
+
+    @Override
+    public void write(int oneByte) throws IOException {
+        write(new byte[]{(byte) oneByte}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int count) throws IOException {
+        ByteBuffer source = ByteBuffer.wrap(buffer, offset, count);
+        while (source.hasRemaining()) {
+            mPosition += mChannel.write(source, mPosition);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+ * Opens and releases the HTTP connections of a sync so they can be kept
+ * alive and reused. HttpURLConnection already keeps a pool of idle
+ * connections per origin, but a connection only goes back to it once its
+ * response body has been read to the end and closed, and never after
+ * disconnect(). So release() finishes short responses and only
+ * disconnects when there's too much left to be worth reading.
+ *
+ * The pool holds at most MAX_IDLE_CONNECTIONS idle connections per
+ * origin (http.maxConnections). HttpURLConnection doesn't pipeline, so
+ * small GETs still go one at a time per connection.
+ */
+class HttpConnections {
+    private static final int MAX_IDLE_CONNECTIONS = 8;
+    // Larger remainders are cheaper to drop than to read
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    static {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+    }
+
+    public static HttpURLConnection open(String urlSpec) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(urlSpec).openConnection();
+        // A peer that doesn't answer quickly is better skipped. Mirrors
+        // get timeouts to match how they usually do, so a stalled
+        // request fails instead of hanging the sync.
+        if (PeerSharing.isPeerUrl(urlSpec)) {
+            connection.setConnectTimeout(PeerSharing.CONNECT_TIMEOUT_IN_MILLIS);
+            connection.setReadTimeout(PeerSharing.READ_TIMEOUT_IN_MILLIS);
+        } else {
+            connection.setConnectTimeout(Mirrors.getConnectTimeout(urlSpec));
+            connection.setReadTimeout(Mirrors.getReadTimeout(urlSpec));
+        }
+        return connection;
+    }
+
+    // Reads what's left of the response, error or not, and closes it so
+    // the connection can be reused. Disconnects if that isn't possible,
+    // or if reusable is false: after an exception the state of the
+    // connection is unknown.
+    public static void release(HttpURLConnection connection, boolean reusable) {
+        if (!reusable) {
+            connection.disconnect();
+            return;
+        }
+        try {
+            InputStream in = connection.getErrorStream();
+            if (in == null)
+                in = connection.getInputStream();
+            try {
+                byte[] buffer = new byte[8 * 1024];
+                int drained = 0;
+                int bytesRead;
+                while ((bytesRead = in.read(buffer)) != -1) {
+                    drained += bytesRead;
+                    if (drained > MAX_DRAIN_BYTES) {
+                        connection.disconnect();
+                        return;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.rdm.rdmtestplayer;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+
+/*
+ * Re-verifies synced content over and over while the player runs, so
+ * corruption that shows up during weeks of uptime is found before the
+ * media player trips over it. Runs on a background priority thread and
+ * reads no faster than its byte rate budget, so it stays out of the way
+ * of decoding. The file that's playing is skipped.
+ *
+ * Files found corrupt are withdrawn from the playlist, queued and
+ * repaired (see Content.download()) on the same thread before it moves
+ * on. What a repair reads to hash, e.g. to find the bad blocks, is
+ * charged to the same budget.
+ */
+class IntegrityScrubber {
+    private static final String TAG = "IntegrityScrubber";
+
+    private static final long DEFAULT_BYTES_PER_SECOND = 2 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    // Pause between passes, and before the first one
+    private static final long PASS_INTERVAL_IN_MILLIS = 60 * 1000;
+
+    private final TokenBucket mBudget = new TokenBucket(DEFAULT_BYTES_PER_SECOND);
+    private volatile String mNowPlaying;
+    private volatile boolean mStopped = false;
+    private Thread mThread;
+
+    private final Queue<Content> mRepairQueue = new ArrayDeque<>();
+
+    // Progress, for monitoring
+    private volatile String mCurrentFile;
+    private volatile int mPasses = 0;
+    private volatile long mBytesVerified = 0;
+    private volatile int mFilesVerified = 0;
+    private volatile int mCorruptFiles = 0;
+    private volatile long mNanosVerifying = 0;
+
+    public void setBytesPerSecond(long bytesPerSecond) {
+        mBudget.setRate(Math.max(bytesPerSecond, BUFFER_SIZE));
+    }
+
+    // Local path of the file being played, which is left alone
+    public void setNowPlaying(String path) {
+        mNowPlaying = path;
+    }
+
+    public synchronized void start() {
+        if (mThread != null)
+            return;
+        mStopped = false;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                scrub();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    public synchronized void stop() {
+        mStopped = true;
+        if (mThread != null) {
+            mThread.interrupt();
+            mThread = null;
+        }
+    }
+
+    public String getCurrentFile() {
+        return mCurrentFile;
+    }
+
+    public int getPasses() {
+        return mPasses;
+    }
+
+    public long getBytesVerified() {
+        return mBytesVerified;
+    }
+
+    public int getFilesVerified() {
+        return mFilesVerified;
+    }
+
+    public int getCorruptFiles() {
+        return mCorruptFiles;
+    }
+
+    // Average over the time spent on files, in bytes per second. Stays at
+    // or below the budget.
+    public long getThroughput() {
+        long nanos = mNanosVerifying;
+        return nanos == 0 ? 0 : mBytesVerified * 1000000000L / nanos;
+    }
+
+    public int getRepairQueueLength() {
+        synchronized (mRepairQueue) {
+            return mRepairQueue.size();
+        }
+    }
+
+    private boolean isNowPlaying(Content content) {
+        return isNowPlaying(content.mLocalPath, content.getFileName());
+    }
+
+    // The player may be reading it from a snapshot
+    private boolean isNowPlaying(String localPath, String fileName) {
+        String nowPlaying = mNowPlaying;
+        if (nowPlaying == null)
+            return false;
+        return nowPlaying.equals(localPath)
+                || (nowPlaying.startsWith(ContentSnapshots.getSnapshotsPath())
+                    && nowPlaying.endsWith(File.separator + fileName));
+    }
+
+    private void scrub() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            while (!mStopped) {
+                Thread.sleep(PASS_INTERVAL_IN_MILLIS);
+                List<Content> contentList = ContentSync.getContentListSnapshot();
+                for (int i = 0; i < contentList.size(); i++) {
+                    if (mStopped)
+                        return;
+                    verify(contentList, i, buffer);
+                    repairQueued();
+                }
+                mPasses++;
+                mCurrentFile = null;
+                Log.i(TAG, "Pass " + mPasses + ": " + mFilesVerified + " files, "
+                        + mBytesVerified + " bytes verified at " + getThroughput() + " B/s, "
+                        + mCorruptFiles + " corrupt");
+            }
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    // Only content that is believed to be good is checked. An entry of an
+    // index that sync assumed up to date without creating it (see
+    // ContentIndex.ContentList) is read from the index, and only created
+    // if it's corrupt.
+    private void verify(List<Content> contentList, int i, ByteBuffer buffer) throws InterruptedException {
+        Content content = ContentIndex.peek(contentList, i);
+        String localPath;
+        String fileName;
+        String hashAlgorithm;
+        String hashString;
+        long sizeInBytes;
+        if (content != null) {
+            if (!content.isUpToDate())
+                return;
+            localPath = content.mLocalPath;
+            fileName = content.getFileName();
+            hashAlgorithm = content.getHashAlgorithm();
+            hashString = content.getExpectedHashString();
+            sizeInBytes = content.getSizeInBytes();
+        } else {
+            ContentIndex.ContentList indexed = (ContentIndex.ContentList) contentList;
+            if (!indexed.isAssumePresent())
+                return;
+            ContentIndex index = indexed.getIndex();
+            localPath = index.getLocalPath(i);
+            fileName = index.getFileName(i);
+            hashAlgorithm = index.getHashAlgorithm(i);
+            hashString = index.getExpectedHashString(i);
+            sizeInBytes = index.getSizeInBytes(i);
+        }
+        if (isNowPlaying(localPath, fileName))
+            return;
+
+        File file = new File(localPath);
+        mCurrentFile = file.getPath();
+        byte[] hash;
+        try {
+            ContentDigest digest = ContentHasher.getDigest(hashAlgorithm);
+            FileInputStream in = new FileInputStream(file);
+            long start = System.nanoTime();
+            try {
+                FileChannel channel = in.getChannel();
+                buffer.clear();
+                int n;
+                while ((n = channel.read(buffer)) != -1) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                    mBytesVerified += n;
+                    mBudget.acquire(n);
+                    if (mStopped)
+                        return;
+                }
+            } finally {
+                in.close();
+                mNanosVerifying += System.nanoTime() - start;
+            }
+            hash = digest.digest();
+        } catch (InterruptedIOException e) {
+            throw new InterruptedException();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            Log.w(TAG, "", e);
+            return;
+        }
+        mFilesVerified++;
+
+        if (file.length() == sizeInBytes
+                && ContentHasher.toHexString(hash).equalsIgnoreCase(hashString))
+            return;
+        Log.e(TAG, "Corrupt: " + file);
+        mCorruptFiles++;
+        if (content == null)
+            content = contentList.get(i);
+        content.invalidate();
+        ContentSync.notifyContentRemoved(content);
+        synchronized (mRepairQueue) {
+            mRepairQueue.add(content);
+        }
+    }
+
+    private void repairQueued() {
+        while (!mStopped) {
+            Content content;
+            synchronized (mRepairQueue) {
+                content = mRepairQueue.poll();
+            }
+            if (content == null)
+                return;
+            if (isNowPlaying(content)) {
+                // try again after the next file
+                synchronized (mRepairQueue) {
+                    mRepairQueue.add(content);
+                }
+                return;
+            }
+            ContentHasher.setReadBudget(mBudget);
+            try {
+                content.download();
+                if (content.isUpToDate())
+                    ContentSync.notifyContentAdded(content);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to repair: " + content.mLocalPath, e);
+            } finally {
+                ContentHasher.setReadBudget(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * The origins content can be fetched from. By default that's just the
+ * built-in base url. A "mirrors" file in the download path, which sync
+ * loads if present, lists others, each with an optional weight:
+ *     mirror.1=http://cdn.example.com/rdm_test_media/ 2
+ *     mirror.2=http://3gfp.com/i/rdm_test_media/
+ *
+ * Every request to a mirror is measured. Its latency (time to the
+ * response headers) and throughput are kept as moving averages, and
+ * choose() picks the mirror with the best weight * throughput, halved
+ * for each failure in a row. Unmeasured mirrors count as average, and
+ * ties go to the one listed first.
+ *
+ * Timeouts follow the measurements: a mirror has ~4x its usual latency
+ * to connect and answer, and a read may wait ~4x as long as a buffer
+ * usually takes, within fixed bounds. A stalled transfer, e.g. one whose
+ * packets are blackholed, ends with a read timeout and resumes from the
+ * next best mirror (see Content.download()).
+ *
+ * After MAX_FAILURES failures in a row a mirror's circuit opens and it's
+ * skipped for a cooldown, doubling each time, up to MAX_COOLDOWN. Then it
+ * gets one trial request (half open); success closes the circuit.
+ */
+class Mirrors {
+    private static final String TAG = "Mirrors";
+
+    private static final String MIRROR = "mirror.";
+    private static final int MAX_FAILURES = 3;
+    private static final long DEFAULT_MIN_COOLDOWN_IN_NANOS = 30000000000L;
+    private static final long MAX_COOLDOWN_IN_NANOS = 10 * 60000000000L;
+    // Weight of a new sample in the moving averages
+    private static final double SMOOTHING = 0.3d;
+    // Transfers shorter than this say more about latency than throughput
+    private static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    private static final int READ_SIZE = 32 * 1024;
+    private static final int TIMEOUT_FACTOR = 4;
+    private static final int MIN_CONNECT_TIMEOUT_IN_MILLIS = 2000;
+    private static final int MAX_CONNECT_TIMEOUT_IN_MILLIS = 20000;
+    private static final int DEFAULT_CONNECT_TIMEOUT_IN_MILLIS = 10000;
+    private static final int MIN_READ_TIMEOUT_IN_MILLIS = 5000;
+    private static final int MAX_READ_TIMEOUT_IN_MILLIS = 60000;
+    private static final int DEFAULT_READ_TIMEOUT_IN_MILLIS = 30000;
+
+    static class Mirror {
+        final String mBaseUrl;
+        final double mWeight;
+        // Moving averages, 0 until measured
+        double mLatencyInNanos;
+        double mBytesPerSecond;
+        int mFailures;
+        long mCooldownInNanos;
+        long mOpenUntil;
+        boolean mOpen;
+        boolean mTrialPending;
+
+        Mirror(String baseUrl, double weight) {
+            mBaseUrl = baseUrl;
+            mWeight = weight;
+        }
+
+        String getUrl(String path) {
+            return mBaseUrl + path;
+        }
+
+        @Override
+        public String toString() {
+            return mBaseUrl;
+        }
+    }
+
+    private static final List<Mirror> sMirrors = new ArrayList<>();
+    private static long sMinCooldownInNanos = DEFAULT_MIN_COOLDOWN_IN_NANOS;
+
+    static {
+        sMirrors.add(new Mirror(Content.getDefaultBaseUrl(), 1.0d));
+    }
+
+    // Replaces the mirrors with the ones in file, if it exists and lists
+    // any. Mirrors that stay keep their measurements.
+    public static synchronized void load(File file) {
+        List<Mirror> mirrors = new ArrayList<>();
+        if (file.isFile()) {
+            Properties properties = new Properties();
+            ContentSync.loadProperties(properties, file);
+            for (int i = 1; properties.getProperty(MIRROR + i) != null; i++) {
+                Mirror mirror = parseMirror(properties.getProperty(MIRROR + i));
+                if (mirror != null)
+                    mirrors.add(find(mirror.mBaseUrl) != null ? find(mirror.mBaseUrl) : mirror);
+                else
+                    Log.e(TAG, "Invalid mirror: " + properties.getProperty(MIRROR + i));
+            }
+        }
+        if (mirrors.isEmpty()) {
+            Mirror mirror = find(Content.getDefaultBaseUrl());
+            mirrors.add(mirror != null ? mirror : new Mirror(Content.getDefaultBaseUrl(), 1.0d));
+        }
+        sMirrors.clear();
+        sMirrors.addAll(mirrors);
+    }
+
+    // How long a mirror is skipped the first time its circuit opens
+    public static synchronized void setMinCooldown(long minCooldownInNanos) {
+        sMinCooldownInNanos = minCooldownInNanos;
+    }
+
+    public static synchronized int size() {
+        return sMirrors.size();
+    }
+
+    // The best mirror to use now, or null while all circuits are open
+    public static synchronized Mirror choose() {
+        List<Mirror> ranked = rank();
+        if (ranked.isEmpty())
+            return null;
+        Mirror best = ranked.get(0);
+        // one trial at a time for a half-open circuit
+        if (best.mOpen)
+            best.mTrialPending = true;
+        return best;
+    }
+
+    // Best first, without open circuits. For requests that fail over
+    // right away, like the content list.
+    public static synchronized List<Mirror> getAvailable() {
+        return rank();
+    }
+
+    public static synchronized int getConnectTimeout(String urlSpec) {
+        Mirror mirror = find(urlSpec);
+        if (mirror == null || mirror.mLatencyInNanos <= 0)
+            return DEFAULT_CONNECT_TIMEOUT_IN_MILLIS;
+        return clamp(TIMEOUT_FACTOR * mirror.mLatencyInNanos / 1e6d,
+                MIN_CONNECT_TIMEOUT_IN_MILLIS, MAX_CONNECT_TIMEOUT_IN_MILLIS);
+    }
+
+    // How long one read may block before the transfer counts as stalled
+    public static synchronized int getReadTimeout(String urlSpec) {
+        Mirror mirror = find(urlSpec);
+        if (mirror == null || mirror.mLatencyInNanos <= 0 || mirror.mBytesPerSecond <= 0)
+            return DEFAULT_READ_TIMEOUT_IN_MILLIS;
+        double readMillis = mirror.mLatencyInNanos / 1e6d + READ_SIZE * 1000.0d / mirror.mBytesPerSecond;
+        return clamp(TIMEOUT_FACTOR * readMillis, MIN_READ_TIMEOUT_IN_MILLIS, MAX_READ_TIMEOUT_IN_MILLIS);
+    }
+
+    // The response headers to a request to urlSpec arrived after
+    // latencyInNanos. Server errors count as failures.
+    public static synchronized void responded(String urlSpec, int responseCode, long latencyInNanos) {
+        Mirror mirror = find(urlSpec);
+        if (mirror == null)
+            return;
+        mirror.mLatencyInNanos = average(mirror.mLatencyInNanos, latencyInNanos);
+        if (responseCode >= 500)
+            failed(mirror, "HTTP " + responseCode);
+    }
+
+    // A request to urlSpec is done, and its body of bytes took nanos.
+    // Only that makes a mirror healthy: headers alone don't, since a
+    // transfer can still stall.
+    public static synchronized void completed(String urlSpec, long bytes, long nanos) {
+        Mirror mirror = find(urlSpec);
+        if (mirror == null)
+            return;
+        if (bytes >= MIN_SAMPLE_BYTES && nanos > 0)
+            mirror.mBytesPerSecond = average(mirror.mBytesPerSecond, bytes * 1e9d / nanos);
+        if (mirror.mOpen)
+            Log.i(TAG, mirror + " is back");
+        mirror.mFailures = 0;
+        mirror.mOpen = false;
+        mirror.mTrialPending = false;
+    }
+
+    // A request to urlSpec failed with e, or came up short if e is null.
+    // Being interrupted isn't the mirror's fault; timing out is.
+    public static synchronized void failed(String urlSpec, Exception e) {
+        Mirror mirror = find(urlSpec);
+        if (mirror == null)
+            return;
+        if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+            mirror.mTrialPending = false;
+            return;
+        }
+        failed(mirror, e == null ? "short response" : e.toString());
+    }
+
+    private static void failed(Mirror mirror, String reason) {
+        mirror.mFailures++;
+        mirror.mTrialPending = false;
+        Log.w(TAG, mirror + " failed (" + mirror.mFailures + " in a row): " + reason);
+        if (mirror.mOpen || mirror.mFailures >= MAX_FAILURES) {
+            mirror.mCooldownInNanos = mirror.mOpen
+                    ? Math.min(mirror.mCooldownInNanos * 2, MAX_COOLDOWN_IN_NANOS) : sMinCooldownInNanos;
+            mirror.mOpen = true;
+            mirror.mOpenUntil = System.nanoTime() + mirror.mCooldownInNanos;
+            Log.w(TAG, mirror + " skipped for " + mirror.mCooldownInNanos / 1000000000L + " s");
+        }
+    }
+
+    // The mirror urlSpec is on, or null, e.g. for peers
+    private static Mirror find(String urlSpec) {
+        for (Mirror mirror : sMirrors) {
+            if (urlSpec.startsWith(mirror.mBaseUrl))
+                return mirror;
+        }
+        return null;
+    }
+
+    // Available mirrors by score; the sort is stable, so ties stay in
+    // listed order
+    private static List<Mirror> rank() {
+        long now = System.nanoTime();
+        double average = getAverageBytesPerSecond();
+        List<Mirror> ranked = new ArrayList<>();
+        final Map<Mirror, Double> scores = new HashMap<>();
+        for (Mirror mirror : sMirrors) {
+            if (mirror.mOpen && (now - mirror.mOpenUntil < 0 || mirror.mTrialPending))
+                continue;
+            ranked.add(mirror);
+            scores.put(mirror, mirror.mWeight * (mirror.mBytesPerSecond > 0 ? mirror.mBytesPerSecond : average)
+                    / (1 << Math.min(mirror.mFailures, 16)));
+        }
+        Collections.sort(ranked, new Comparator<Mirror>() {
+            @Override
+            public int compare(Mirror lhs, Mirror rhs) {
+                return scores.get(rhs).compareTo(scores.get(lhs));
+            }
+        });
+        return ranked;
+    }
+
+    // Of the measured mirrors, or 1 if none is
+    private static double getAverageBytesPerSecond() {
+        double sum = 0.0d;
+        int count = 0;
+        for (Mirror mirror : sMirrors) {
+            if (mirror.mBytesPerSecond > 0) {
+                sum += mirror.mBytesPerSecond;
+                count++;
+            }
+        }
+        return count > 0 ? sum / count : 1.0d;
+    }
+
+    private static double average(double average, double sample) {
+        return average <= 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+
+    private static int clamp(double value, int min, int max) {
+        return (int) Math.max(min, Math.min(value, max));
+    }
+
+    // "url [weight]", or null
+    private static Mirror parseMirror(String mirror) {
+        String[] parts = mirror.trim().split("\\s+");
+        if (parts.length > 2 || !(parts[0].startsWith("http://") || parts[0].startsWith("https://")))
+            return null;
+        String baseUrl = parts[0].endsWith("/") ? parts[0] : parts[0] + "/";
+        double weight = 1.0d;
+        if (parts.length == 2) {
+            try {
+                weight = Double.parseDouble(parts[1]);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (!(weight > 0))
+                return null;
+        }
+        return new Mirror(baseUrl, weight);
+    }
+}
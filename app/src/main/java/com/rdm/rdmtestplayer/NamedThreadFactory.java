@@ -0,0 +1,38 @@
+package com.rdm.rdmtestplayer;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Names the threads of a pool after it: "<name> #<n>". They may run at
+ * a Linux priority other than the default (see android.os.Process), e.g.
+ * THREAD_PRIORITY_BACKGROUND to stay out of playback's way.
+ */
+class NamedThreadFactory implements ThreadFactory {
+    private final String mName;
+    private final int mPriority;
+    private final AtomicInteger mCount = new AtomicInteger(1);
+
+    NamedThreadFactory(String name) {
+        this(name, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    NamedThreadFactory(String name, int priority) {
+        mName = name;
+        mPriority = priority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                if (mPriority != Process.THREAD_PRIORITY_DEFAULT)
+                    Process.setThreadPriority(mPriority);
+                runnable.run();
+            }
+        }, mName + " #" + mCount.getAndIncrement());
+    }
+}
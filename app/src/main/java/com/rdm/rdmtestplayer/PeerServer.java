@@ -0,0 +1,300 @@
+package com.rdm.rdmtestplayer;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Serves this player's content store to its peers, read-only, over
+ * HTTP/1.1 with keep-alive:
+ *     GET|HEAD /peer/v1/objects/<algorithm>/<hash>
+ * Only objects the verification ledger has verified are served (200,
+ * or 206 for a Range). An object still being downloaded here gets 503,
+ * so a peer can wait for it instead of going to the origin too; see
+ * Content.downloadFromPeers(). Anything else is 404.
+ *
+ * Objects are sent with FileChannel.transferTo() straight to the socket,
+ * which is sendfile(): the bytes never pass through the Java heap.
+ *
+ * At most MAX_CLIENTS connections are served at once, at background
+ * priority so playback isn't disturbed. Others are closed right away.
+ */
+class PeerServer {
+    private static final String TAG = "PeerServer";
+
+    private static final int MAX_CLIENTS = 4;
+    private static final int MAX_HEADER_BYTES = 8 * 1024;
+    private static final int IDLE_TIMEOUT_IN_MILLIS = 15000;
+    // A .part file written to this recently is a download in progress
+    private static final long BUSY_WINDOW_IN_MILLIS = 10000;
+    private static final int RETRY_AFTER_SECONDS = 2;
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocketChannel mServerChannel;
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, MAX_CLIENTS,
+            IDLE_TIMEOUT_IN_MILLIS, TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), sThreadFactory);
+    private Thread mAcceptThread;
+
+    public PeerServer(int port) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port));
+    }
+
+    public int getPort() {
+        return mServerChannel.socket().getLocalPort();
+    }
+
+    public void start() {
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, TAG);
+        mAcceptThread.start();
+    }
+
+    public void stop() {
+        try {
+            mServerChannel.close();
+        } catch (IOException ignored) {
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while (mServerChannel.isOpen()) {
+            final SocketChannel channel;
+            try {
+                channel = mServerChannel.accept();
+            } catch (IOException e) {
+                // closed by stop()
+                if (mServerChannel.isOpen())
+                    Log.e(TAG, "", e);
+                return;
+            }
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        serve(channel);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                close(channel);
+            }
+        }
+    }
+
+    // Answers requests on channel until the client closes it, is idle
+    // too long, or something goes wrong
+    private void serve(SocketChannel channel) {
+        try {
+            channel.socket().setSoTimeout(IDLE_TIMEOUT_IN_MILLIS);
+            channel.socket().setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(channel.socket().getInputStream());
+            String header;
+            while ((header = readHeader(in)) != null) {
+                if (!respond(channel, header))
+                    break;
+            }
+        } catch (SocketTimeoutException ignored) {
+        } catch (IOException e) {
+            Log.w(TAG, "Serving " + channel.socket().getInetAddress() + ": " + e.getMessage());
+        } finally {
+            close(channel);
+        }
+    }
+
+    // Returns false if the connection is to be closed
+    private boolean respond(SocketChannel channel, String header) throws IOException {
+        String[] lines = header.split("\r?\n");
+        String[] request = lines[0].split(" ");
+        if (request.length != 3 || !request[2].startsWith("HTTP/1.")) {
+            sendStatus(channel, "400 Bad Request", true);
+            return false;
+        }
+        boolean head = request[0].equals("HEAD");
+        if (!head && !request[0].equals("GET")) {
+            sendStatus(channel, "405 Method Not Allowed", true);
+            return false;
+        }
+        boolean close = request[2].equals("HTTP/1.0");
+        String range = null;
+        String ifRange = null;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon < 0)
+                continue;
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("range"))
+                range = value;
+            else if (name.equals("if-range"))
+                ifRange = value;
+            else if (name.equals("connection"))
+                close = value.equalsIgnoreCase("close");
+        }
+
+        // /peer/v1/objects/<algorithm>/<hash>, and nothing else
+        String path = request[1];
+        String[] names = path.startsWith(PeerSharing.OBJECTS_PATH)
+                ? path.substring(PeerSharing.OBJECTS_PATH.length()).split("/") : new String[0];
+        if (names.length != 2 || !ContentDigest.isSupported(names[0]) || !ContentStore.isValidHash(names[1])) {
+            sendStatus(channel, "404 Not Found", close);
+            return !close;
+        }
+        String hashAlgorithm = names[0];
+        String hashString = names[1];
+        File object = ContentStore.getObjectFile(hashAlgorithm, hashString);
+        VerificationLedger ledger = ContentSync.getVerificationLedger();
+        FileInputStream file;
+        try {
+            if (ledger == null || !ledger.isVerified(object, hashAlgorithm, hashString))
+                throw new IOException("Not verified");
+            file = new FileInputStream(object);
+        } catch (IOException e) {
+            File partFile = new File(object.getPath() + Content.PART_SUFFIX);
+            long age = System.currentTimeMillis() - partFile.lastModified();
+            if (partFile.isFile() && age >= 0 && age < BUSY_WINDOW_IN_MILLIS)
+                sendStatus(channel, "503 Service Unavailable\r\nRetry-After: " + RETRY_AFTER_SECONDS, close);
+            else
+                sendStatus(channel, "404 Not Found", close);
+            return !close;
+        }
+
+        try {
+            FileChannel fileChannel = file.getChannel();
+            long size = fileChannel.size();
+            // It's the object's digest, so it can't refer to other content
+            String eTag = "\"" + hashAlgorithm + "-" + hashString.toLowerCase(Locale.US) + "\"";
+            long start = 0;
+            long end = size - 1;
+            String status = "200 OK";
+            if (range != null && (ifRange == null || ifRange.equals(eTag))) {
+                long[] bounds = parseRange(range, size);
+                if (bounds == null) {
+                    sendStatus(channel, "416 Range Not Satisfiable\r\nContent-Range: bytes */" + size, close);
+                    return !close;
+                }
+                start = bounds[0];
+                end = bounds[1];
+                status = "206 Partial Content\r\nContent-Range: bytes " + start + "-" + end + "/" + size;
+            }
+            long length = end - start + 1;
+            write(channel, "HTTP/1.1 " + status
+                    + "\r\nContent-Length: " + length
+                    + "\r\nContent-Type: application/octet-stream"
+                    + "\r\nAccept-Ranges: bytes"
+                    + "\r\nETag: " + eTag
+                    + (close ? "\r\nConnection: close" : "")
+                    + "\r\n\r\n");
+            if (!head) {
+                for (long sent = 0; sent < length; ) {
+                    long count = fileChannel.transferTo(start + sent, length - sent, channel);
+                    // the file shrank under us; the client sees a short response
+                    if (count <= 0)
+                        return false;
+                    sent += count;
+                }
+            }
+        } finally {
+            file.close();
+        }
+        return !close;
+    }
+
+    // A single "bytes=first-[last]" or "bytes=-suffix" range, as
+    // {start, end}, or null if it's unsatisfiable
+    private static long[] parseRange(String range, long size) {
+        if (!range.startsWith("bytes=") || range.indexOf(',') >= 0)
+            return null;
+        String spec = range.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+        try {
+            long start;
+            long end;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                start = Math.max(size - suffix, 0);
+                end = size - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash));
+                end = dash == spec.length() - 1 ? size - 1
+                        : Math.min(Long.parseLong(spec.substring(dash + 1)), size - 1);
+            }
+            if (start < 0 || start > end)
+                return null;
+            return new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // The request line and headers, or null at the end of the stream
+    private static String readHeader(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int last = -1;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n' && (last == '\n' || (last == '\r' && header.length() >= 2
+                    && header.charAt(header.length() - 2) == '\n'))) {
+                // skip empty lines before a request
+                String request = header.toString().trim();
+                if (!request.isEmpty())
+                    return request;
+                header.setLength(0);
+                last = -1;
+                continue;
+            }
+            if (header.length() >= MAX_HEADER_BYTES)
+                throw new IOException("Header too long");
+            header.append((char) c);
+            last = c;
+        }
+        return null;
+    }
+
+    private static void sendStatus(SocketChannel channel, String status, boolean close) throws IOException {
+        write(channel, "HTTP/1.1 " + status + "\r\nContent-Length: 0"
+                + (close ? "\r\nConnection: close" : "") + "\r\n\r\n");
+    }
+
+    private static void write(SocketChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(US_ASCII));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static final ThreadFactory sThreadFactory = new NamedThreadFactory(TAG);
+}
@@ -0,0 +1,256 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Players on the same LAN share content, so each object crosses the WAN
+ * link about once per store instead of once per screen.
+ *
+ * Every player serves its verified objects read-only (see PeerServer)
+ * and announces itself with a multicast beacon:
+ *     RDMPEER 1 <instance id> <http port>
+ * to GROUP:DISCOVERY_PORT every BEACON_INTERVAL_IN_NANOS, and at once to
+ * a peer it hasn't heard from before. Peers not heard from for
+ * PEER_EXPIRY_IN_NANOS are dropped.
+ *
+ * Before going to the origin, a download asks the peers for the object
+ * by digest. Peers can't be trusted any more than the origin: what they
+ * send is verified against the content list like any download, and a
+ * peer that sends bad content is left alone for a while.
+ *
+ * Each instance has its own id and may use any port, so several players
+ * can run on one host, e.g. with start(0, loopback) in tests.
+ */
+class PeerSharing {
+    private static final String TAG = "PeerSharing";
+
+    public static final int DEFAULT_PORT = 8650;
+    private static final int DISCOVERY_PORT = 8651;
+    private static final String GROUP = "239.255.86.50";
+    private static final String BEACON = "RDMPEER 1";
+    private static final long BEACON_INTERVAL_IN_NANOS = 5000000000L;
+    private static final long PEER_EXPIRY_IN_NANOS = 3 * BEACON_INTERVAL_IN_NANOS;
+    // How long a peer is skipped after a failed or a bad download
+    private static final long FAILURE_PENALTY_IN_NANOS = 60000000000L;
+    private static final long CORRUPT_PENALTY_IN_NANOS = 10 * 60000000000L;
+    // Peers are on the LAN, or gone
+    static final int CONNECT_TIMEOUT_IN_MILLIS = 2000;
+    static final int READ_TIMEOUT_IN_MILLIS = 10000;
+    static final String OBJECTS_PATH = "/peer/v1/objects/";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // What a peer says about an object
+    static final int MISSING = 0;
+    static final int AVAILABLE = 1;
+    // it's downloading it right now
+    static final int BUSY = 2;
+    // How often to ask a BUSY peer again, and for how long in all before
+    // going to the mirrors: the waiting download holds its space and a
+    // download slot
+    static final long BUSY_RETRY_IN_MILLIS = 2000;
+    static final long BUSY_WAIT_IN_NANOS = 60000000000L;
+
+    private static class Peer {
+        final String mBaseUrl;
+        long mLastSeen;
+        long mPenaltyEnd;
+
+        Peer(String baseUrl) {
+            mBaseUrl = baseUrl;
+            mLastSeen = mPenaltyEnd = System.nanoTime();
+        }
+    }
+
+    private static final long sInstanceId = new Random().nextLong();
+    // "host:port" -> peer
+    private static final Map<String, Peer> sPeers = new HashMap<>();
+    private static final Random sRandom = new Random();
+    private static PeerServer sServer;
+    private static MulticastSocket sSocket;
+    private static Thread sThread;
+
+    // Serves the store on port (0 for any) and looks for peers on
+    // networkInterface, or the default one if null
+    public static synchronized void start(int port, NetworkInterface networkInterface) {
+        if (sServer != null)
+            return;
+        try {
+            sServer = new PeerServer(port);
+            InetAddress group = InetAddress.getByName(GROUP);
+            sSocket = new MulticastSocket(DISCOVERY_PORT);
+            if (networkInterface != null) {
+                sSocket.setNetworkInterface(networkInterface);
+                sSocket.joinGroup(new InetSocketAddress(group, DISCOVERY_PORT), networkInterface);
+            } else {
+                sSocket.joinGroup(group);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "", e);
+            stop();
+            return;
+        }
+        sServer.start();
+        final MulticastSocket socket = sSocket;
+        final byte[] beacon = (BEACON + " " + sInstanceId + " " + sServer.getPort()).getBytes(UTF_8);
+        sThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                discover(socket, beacon);
+            }
+        }, TAG);
+        sThread.start();
+        Log.i(TAG, "Serving on port " + sServer.getPort());
+    }
+
+    public static synchronized void stop() {
+        if (sSocket != null)
+            sSocket.close();
+        if (sThread != null)
+            sThread.interrupt();
+        if (sServer != null)
+            sServer.stop();
+        sSocket = null;
+        sThread = null;
+        sServer = null;
+        synchronized (sPeers) {
+            sPeers.clear();
+        }
+    }
+
+    // Urls of the object at live peers, in random order so downloads
+    // spread over them
+    static List<String> getObjectUrls(String hashAlgorithm, String hashString) {
+        List<String> urls = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (sPeers) {
+            for (Peer peer : sPeers.values()) {
+                if (now - peer.mLastSeen < PEER_EXPIRY_IN_NANOS && now - peer.mPenaltyEnd >= 0)
+                    urls.add(peer.mBaseUrl + OBJECTS_PATH + hashAlgorithm + "/" + hashString.toLowerCase(Locale.US));
+            }
+        }
+        Collections.shuffle(urls, sRandom);
+        return urls;
+    }
+
+    static boolean isPeerUrl(String urlSpec) {
+        return urlSpec.contains(OBJECTS_PATH);
+    }
+
+    // MISSING, AVAILABLE or BUSY, and MISSING if the peer can't be reached
+    static int probe(String urlSpec) {
+        HttpURLConnection connection = null;
+        boolean reusable = true;
+        try {
+            connection = HttpConnections.open(urlSpec);
+            connection.setRequestMethod("HEAD");
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK)
+                return AVAILABLE;
+            if (responseCode == HttpURLConnection.HTTP_UNAVAILABLE)
+                return BUSY;
+        } catch (IOException e) {
+            reusable = false;
+            reportFailure(urlSpec, false);
+        } finally {
+            if (connection != null)
+                HttpConnections.release(connection, reusable);
+        }
+        return MISSING;
+    }
+
+    // The peer at urlSpec failed to deliver, or sent content that doesn't
+    // match its digest (corrupt)
+    static void reportFailure(String urlSpec, boolean corrupt) {
+        long now = System.nanoTime();
+        synchronized (sPeers) {
+            for (Peer peer : sPeers.values()) {
+                if (urlSpec.startsWith(peer.mBaseUrl + "/")) {
+                    peer.mPenaltyEnd = now + (corrupt ? CORRUPT_PENALTY_IN_NANOS : FAILURE_PENALTY_IN_NANOS);
+                    Log.w(TAG, (corrupt ? "Bad content from " : "Failed to reach ") + peer.mBaseUrl);
+                }
+            }
+        }
+    }
+
+    private static void discover(MulticastSocket socket, byte[] beacon) {
+        try {
+            InetAddress group = InetAddress.getByName(GROUP);
+            DatagramPacket out = new DatagramPacket(beacon, beacon.length, group, DISCOVERY_PORT);
+            DatagramPacket in = new DatagramPacket(new byte[256], 256);
+            long nextBeacon = System.nanoTime();
+            while (!Thread.currentThread().isInterrupted()) {
+                long wait = nextBeacon - System.nanoTime();
+                if (wait <= 0) {
+                    socket.send(out);
+                    nextBeacon = System.nanoTime() + BEACON_INTERVAL_IN_NANOS;
+                    continue;
+                }
+                socket.setSoTimeout((int) Math.max(wait / 1000000, 1));
+                try {
+                    in.setLength(in.getData().length);
+                    socket.receive(in);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                // answer newcomers right away, so they needn't wait for a beacon
+                if (heard(in))
+                    socket.send(out);
+            }
+        } catch (IOException e) {
+            // closed by stop()
+            if (!socket.isClosed())
+                Log.e(TAG, "", e);
+        }
+    }
+
+    // Records the peer a beacon is from. Returns true if it's new.
+    private static boolean heard(DatagramPacket packet) {
+        String[] fields = new String(packet.getData(), packet.getOffset(), packet.getLength(), UTF_8)
+                .trim().split(" ");
+        if (fields.length != 4 || !(fields[0] + " " + fields[1]).equals(BEACON))
+            return false;
+        int port;
+        try {
+            if (Long.parseLong(fields[2]) == sInstanceId)
+                return false;
+            port = Integer.parseInt(fields[3]);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+        if (port <= 0 || port > 65535)
+            return false;
+        String host = packet.getAddress().getHostAddress();
+        if (host.indexOf(':') >= 0)
+            host = "[" + host + "]";
+        String key = host + ":" + port;
+        synchronized (sPeers) {
+            Peer peer = sPeers.get(key);
+            boolean isNew = peer == null || System.nanoTime() - peer.mLastSeen >= PEER_EXPIRY_IN_NANOS;
+            if (peer == null) {
+                peer = new Peer("http://" + key);
+                sPeers.put(key, peer);
+            }
+            peer.mLastSeen = System.nanoTime();
+            if (isNew)
+                Log.i(TAG, "Found peer " + key);
+            return isNew;
+        }
+    }
+}
@@ -4,9 +4,12 @@ import android.app.Activity;
 import android.content.Context;
 import android.graphics.Color;
 import android.media.MediaPlayer;
+import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Process;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -21,6 +24,8 @@ import android.widget.VideoView;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 
 public class PlayerActivity extends Activity {
@@ -82,10 +87,22 @@ public class PlayerActivity extends Activity {
         }
     }
 
+    // Playlists are loaded on this thread: with snapshots, reading one and
+    // releasing the one before, which may delete it, take a file operation
+    // per entry. A single thread, so loads are applied in order.
+    private static final ExecutorService sPlaylistLoader = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("PlaylistLoader", Process.THREAD_PRIORITY_BACKGROUND));
+
     private ArrayList<VideoViewInterface> mVideoViewInterfaces;
     private int mVideoViewInterfaceIndex = -1;
     private List<Uri> mVideoUriList;
     private int mUriIndex = -1;
+    // Snapshot the playlist comes from, or -1
+    private int mSnapshot = -1;
+    private boolean mPlaying = false;
+    private boolean mDestroyed = false;
+    private final IntegrityScrubber mIntegrityScrubber = new IntegrityScrubber();
+    private WifiManager.MulticastLock mMulticastLock;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -104,6 +121,18 @@ public class PlayerActivity extends Activity {
             downloadPath = getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS).getPath();
         } catch (NullPointerException ignored) {
         }
+        ContentSync.setOnContentChangedListener(mOnContentChangedListener);
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        BandwidthLimiter.setMetered(connectivityManager.isActiveNetworkMetered());
+        // Share content with the other players on the LAN. Wi-Fi drops
+        // multicast, which peers are found by, without the lock.
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            mMulticastLock = wifiManager.createMulticastLock(TAG);
+            mMulticastLock.acquire();
+        }
+        PeerSharing.start(PeerSharing.DEFAULT_PORT, null);
         new ContentSyncAsyncTask(this, mOnContentSyncFinishedRunnable).execute(downloadPath);
 
         // Fullscreen empty, transparent view used to show
@@ -130,19 +159,133 @@ public class PlayerActivity extends Activity {
     private final Runnable mOnContentSyncFinishedRunnable = new Runnable() {
         @Override
         public void run() {
-            populateVideoList();
-            toggleVideoRenderer();
-            mVideoToggleMenuItem.setEnabled(true);
+            populateVideoList(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mPlaying)
+                        startPlayback();
+                    mVideoToggleMenuItem.setEnabled(true);
+                }
+            });
+            mIntegrityScrubber.start();
         }
     };
 
-    private void populateVideoList() {
-        mVideoUriList = new ArrayList<>();
-        for (String path : ContentSync.getLocalContentList()) {
-            mVideoUriList.add(Uri.parse(path));
-        }
+    // Starts playback during sync, as soon as there's something to play
+    private void startPlaybackEarly() {
+        populateVideoList(new Runnable() {
+            @Override
+            public void run() {
+                // otherwise wait for more, or for the end of sync
+                if (mPlaying || mVideoUriList.isEmpty())
+                    return;
+                Log.i(TAG, "Starting playback during sync, " + mVideoUriList.size() + " items ready");
+                startPlayback();
+            }
+        });
+    }
+
+    private void startPlayback() {
+        mPlaying = true;
+        toggleVideoRenderer();
+    }
+
+    // Loads the playlist on sPlaylistLoader, then sets it and runs then,
+    // if not null, on the UI thread
+    private void populateVideoList(final Runnable then) {
+        sPlaylistLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                // With snapshots, play from the current one and hold on to it
+                final int snapshot = ContentSnapshots.acquire();
+                final List<String> paths = snapshot < 0
+                        ? ContentSync.getLocalContentList() : ContentSnapshots.getPaths(snapshot);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mDestroyed) {
+                            releaseSnapshot(snapshot);
+                            return;
+                        }
+                        releaseSnapshot(mSnapshot);
+                        mSnapshot = snapshot;
+                        mVideoUriList = new ArrayList<>();
+                        for (String path : paths) {
+                            mVideoUriList.add(Uri.parse(path));
+                        }
+                        if (mUriIndex >= mVideoUriList.size())
+                            mUriIndex = mVideoUriList.size() - 1;
+                        if (then != null)
+                            then.run();
+                    }
+                });
+            }
+        });
+    }
+
+    // Releasing may delete snapshots, so it's done on sPlaylistLoader too
+    private static void releaseSnapshot(final int snapshot) {
+        if (snapshot < 0)
+            return;
+        sPlaylistLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                ContentSnapshots.release(snapshot);
+            }
+        });
     }
 
+    // Keeps the playlist in step with content that's downloaded, verified
+    // or found damaged, during and after sync
+    private final ContentSync.OnContentChangedListener mOnContentChangedListener =
+            new ContentSync.OnContentChangedListener() {
+                @Override
+                public void contentAdded(final String localPath) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mPlaying) {
+                                startPlaybackEarly();
+                                return;
+                            }
+                            Uri uri = Uri.parse(localPath);
+                            if (!mVideoUriList.contains(uri))
+                                mVideoUriList.add(uri);
+                        }
+                    });
+                }
+
+                @Override
+                public void contentRemoved(final String localPath) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mVideoUriList == null)
+                                return;
+                            int index = mVideoUriList.indexOf(Uri.parse(localPath));
+                            if (index < 0)
+                                return;
+                            mVideoUriList.remove(index);
+                            if (index <= mUriIndex)
+                                mUriIndex--;
+                        }
+                    });
+                }
+
+                @Override
+                public void contentListChanged() {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!mPlaying)
+                                startPlaybackEarly();
+                            else
+                                populateVideoList(null);
+                        }
+                    });
+                }
+            };
+
     private Uri getNextUri() {
         if (mVideoUriList.isEmpty()) {
             Toast.makeText(this, "No Content. Giving up.", Toast.LENGTH_LONG).show();
@@ -159,6 +302,8 @@ public class PlayerActivity extends Activity {
                 public void onCompletion(MediaPlayer mp) {
                     Uri uri = getNextUri();
                     Log.i(TAG, "Start: " + new File(uri.getPath()).getName());
+                    mIntegrityScrubber.setNowPlaying(uri.getPath());
+                    StorageQuota.played(uri.getPath());
                     mVideoViewInterfaces.get(mVideoViewInterfaceIndex).setVideoURI(uri);
                     mVideoViewInterfaces.get(mVideoViewInterfaceIndex).start();
                 }
@@ -167,7 +312,9 @@ public class PlayerActivity extends Activity {
     private final MediaPlayer.OnErrorListener mOnErrorListener = new MediaPlayer.OnErrorListener() {
         @Override
         public boolean onError(MediaPlayer mp, int what, int extra) {
-            Log.e(TAG, "There was an error playing " + mVideoUriList.get(mUriIndex));
+            // the entry may have been withdrawn from the list meanwhile
+            if (mUriIndex >= 0 && mUriIndex < mVideoUriList.size())
+                Log.e(TAG, "There was an error playing " + mVideoUriList.get(mUriIndex));
             // Returning false here will cause mOnCompletionListener.onCompletion()
             // to be called, but it will also popup an error dialog.
             mOnCompletionListener.onCompletion(mp);
@@ -183,6 +330,19 @@ public class PlayerActivity extends Activity {
         getWindow().getDecorView().setBackgroundColor(Color.parseColor("#ffffff"));
     }
 
+    @Override
+    protected void onDestroy() {
+        ContentSync.setOnContentChangedListener(null);
+        mDestroyed = true;
+        releaseSnapshot(mSnapshot);
+        mSnapshot = -1;
+        mIntegrityScrubber.stop();
+        PeerSharing.stop();
+        if (mMulticastLock != null)
+            mMulticastLock.release();
+        super.onDestroy();
+    }
+
     @Override
     public void onWindowFocusChanged(boolean hasFocus) {
         super.onWindowFocusChanged(hasFocus);
@@ -283,6 +443,8 @@ public class PlayerActivity extends Activity {
     }
 
     private void updateToggleVideoRendererMenuItem(String name) {
-        mVideoToggleMenuItem.setTitle(name);
+        // the menu may not exist yet when playback starts during sync
+        if (mVideoToggleMenuItem != null)
+            mVideoToggleMenuItem.setTitle(name);
     }
 }
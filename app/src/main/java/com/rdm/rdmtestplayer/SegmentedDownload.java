@@ -0,0 +1,123 @@
+package com.rdm.rdmtestplayer;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Downloads one large file over several connections at once. The file is
+ * preallocated and split into byte ranges, and each connection writes
+ * its range in place with positional writes. On long round trips one TCP
+ * connection can't fill the link, but a few together can.
+ *
+ * The server must support ranges. The caller verifies the whole file.
+ */
+class SegmentedDownload {
+    private static final String TAG = "SegmentedDownload";
+
+    private static final long DEFAULT_THRESHOLD_IN_BYTES = 64 * 1024 * 1024;
+    private static final int DEFAULT_SEGMENT_COUNT = 4;
+    // Not worth another connection below this
+    private static final long MIN_SEGMENT_SIZE_IN_BYTES = 8 * 1024 * 1024;
+    // Attempts per segment, as long as each one gets further
+    private static final int MAX_SEGMENT_ATTEMPTS = 3;
+
+    private static long sThresholdInBytes = DEFAULT_THRESHOLD_IN_BYTES;
+    private static int sSegmentCount = DEFAULT_SEGMENT_COUNT;
+
+    // Files smaller than this are downloaded over one connection
+    public static void setThreshold(long thresholdInBytes) {
+        sThresholdInBytes = thresholdInBytes;
+    }
+
+    // 1 turns segmented downloads off
+    public static void setSegmentCount(int segmentCount) {
+        sSegmentCount = Math.max(segmentCount, 1);
+    }
+
+    // How many connections a file of this size should be fetched with
+    public static int getSegmentCount(long sizeInBytes) {
+        if (sizeInBytes < sThresholdInBytes)
+            return 1;
+        return (int) Math.max(Math.min(sSegmentCount, sizeInBytes / MIN_SEGMENT_SIZE_IN_BYTES), 1);
+    }
+
+    // Fills file, which is created or resized to sizeInBytes, with the
+    // content of urlSpec. Returns false if any segment failed.
+    public static boolean download(String urlSpec, File file, long sizeInBytes,
+                                   int segmentCount) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            StorageQuota.preallocated(file, FileChannelOutputStream.preallocate(raf, sizeInBytes));
+            FileChannel channel = raf.getChannel();
+            long segmentSize = (sizeInBytes + segmentCount - 1) / segmentCount;
+            List<Callable<Boolean>> tasks = new ArrayList<>(segmentCount);
+            for (long start = 0; start < sizeInBytes; start += segmentSize) {
+                tasks.add(newSegmentTask(urlSpec, channel, start,
+                        Math.min(start + segmentSize, sizeInBytes) - 1));
+            }
+            Log.i(TAG, "Downloading in " + tasks.size() + " segments: " + urlSpec);
+            for (boolean done : invokeAll(tasks)) {
+                if (!done)
+                    return false;
+            }
+            channel.force(false);
+            return true;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Callable<Boolean> newSegmentTask(final String urlSpec, final FileChannel channel,
+                                                    final long start, final long end) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                long position = start;
+                for (int attempt = 1; attempt <= MAX_SEGMENT_ATTEMPTS; attempt++) {
+                    FileRegionOutputStream out = new FileRegionOutputStream(channel, position);
+                    if (ContentSync.getUrlRange(urlSpec, out, position, end))
+                        return true;
+                    if (out.getPosition() == position)
+                        break;
+                    position = out.getPosition();
+                }
+                Log.w(TAG, "Failed at byte " + position + " of segment " + start + "-" + end + ": " + urlSpec);
+                return false;
+            }
+        };
+    }
+
+    private static boolean[] invokeAll(List<Callable<Boolean>> tasks) throws InterruptedIOException {
+        boolean[] result = new boolean[tasks.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size(), sThreadFactory);
+        try {
+            List<Future<Boolean>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < result.length; i++) {
+                result[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Download interrupted");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "", e.getCause());
+            return new boolean[]{false};
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    private static final ThreadFactory sThreadFactory = new NamedThreadFactory(TAG);
+}
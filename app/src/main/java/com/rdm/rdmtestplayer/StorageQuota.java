@@ -0,0 +1,399 @@
+package com.rdm.rdmtestplayer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Process;
+import android.os.StatFs;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Keeps sync within the free space of the download path's volume.
+ *
+ * Before any download starts, plan() checks that the out-of-date content
+ * fits in the free space (StatFs), less MIN_FREE_BYTES for everything
+ * else on the volume and what downloads in flight still need. If it
+ * doesn't, files in the store that the content list doesn't schedule are
+ * evicted until it does: stale .part files first, then objects by
+ * recency or by play count (setEvictionPolicy()), and last the previous
+ * versions of changed content, which DeltaDownload patches from. If the
+ * plan still doesn't fit, sync reports it up front and downloads only
+ * what fits, in download order.
+ *
+ * Each download also reserves what it still needs (reserve()), so
+ * concurrent downloads, and those outside sync, can't overcommit the
+ * volume between them. Until it's written, a reservation counts against
+ * the free space, unless its .part file is preallocated with its blocks
+ * allocated (preallocated()); a sparse one only holds what's written
+ * (written()).
+ *
+ * Unscheduled objects are e.g. the ones a sync interrupted after a list
+ * change leaves behind, since ContentDelta only collects orphans once
+ * sync is done. With snapshots, an evicted object's space may only be
+ * freed once the previous snapshot, which links to it, is gone.
+ *
+ * Plays are counted per object in the play_stats file in the download
+ * path, saved at most every SAVE_INTERVAL_IN_NANOS. played() is called
+ * from the UI thread, so the counting is done on a background thread of
+ * its own, which may wait for an eviction in progress:
+ *     <algorithm>/<hash>=<count> <last played, ms since the epoch>
+ */
+class StorageQuota {
+    private static final String TAG = "StorageQuota";
+
+    // Left for the system and everything else on the volume
+    private static final long MIN_FREE_BYTES = 64 * 1024 * 1024;
+    private static final long SAVE_INTERVAL_IN_NANOS = 10 * 60000000000L;
+
+    // Least recently used or played first, or least often played first
+    public static final int BY_RECENCY = 0;
+    public static final int BY_PLAY_COUNT = 1;
+
+    private static int sEvictionPolicy = BY_RECENCY;
+    // .part file -> the download to it
+    private static final Map<File, Reservation> sReservations = new HashMap<>();
+    // Objects of the content list, and of the previous versions of its
+    // changed entries that are to be downloaded. Nothing is evicted
+    // before plan() sets them.
+    private static Set<String> sScheduled;
+    private static Set<String> sSeeds = new HashSet<>();
+    private static Properties sPlayStats;
+    private static File sPlayStatsFile;
+    private static long sNextSave;
+    private static final ExecutorService sPlayCounter = Executors.newSingleThreadExecutor(
+            new NamedThreadFactory("PlayCounter", Process.THREAD_PRIORITY_BACKGROUND));
+
+    public static synchronized void setEvictionPolicy(int evictionPolicy) {
+        sEvictionPolicy = evictionPolicy;
+    }
+
+    // The entries of outOfDate that fit, in order, after evicting what's
+    // needed. The others go to skipped. scheduled are the local paths of
+    // all the content in the list, which is kept.
+    public static synchronized List<Content> plan(List<Content> outOfDate, List<String> scheduled,
+                                                  List<Content> skipped) {
+        sScheduled = new HashSet<>(scheduled);
+        sSeeds = new HashSet<>();
+        for (Content content : outOfDate) {
+            if (content.mSeedPath != null)
+                sSeeds.add(content.mSeedPath);
+        }
+        prunePlayStats();
+
+        long needed = 0;
+        for (Content content : outOfDate) {
+            needed += getNeededBytes(content);
+        }
+        long free = getFreeBytes();
+        if (needed > free)
+            free += evict(needed - free);
+        if (needed <= free)
+            return outOfDate;
+
+        // as much as fits, in download order
+        List<Content> fits = new ArrayList<>(outOfDate.size());
+        for (Content content : outOfDate) {
+            long bytes = getNeededBytes(content);
+            if (bytes <= free) {
+                fits.add(content);
+                free -= bytes;
+            } else {
+                skipped.add(content);
+            }
+        }
+        Log.e(TAG, "Not enough space: " + needed + " bytes to download, " + Math.max(getFreeBytes(), 0)
+                + " free; skipping " + skipped.size() + " downloads");
+        return fits;
+    }
+
+    // Reserves the space to download content, evicting if needed. Returns
+    // false if it doesn't fit; otherwise release() must follow.
+    public static synchronized boolean reserve(Content content) {
+        long needed = getNeededBytes(content);
+        long free = getFreeBytes();
+        if (needed > free)
+            free += evict(needed - free);
+        if (needed > free) {
+            Log.e(TAG, "Not enough space: " + needed + " bytes to download, " + Math.max(free, 0) + " free");
+            return false;
+        }
+        sReservations.put(getPartFile(content),
+                new Reservation(content.getSizeInBytes(), content.getSizeInBytes() - needed));
+        return true;
+    }
+
+    public static synchronized void release(Content content) {
+        sReservations.remove(getPartFile(content));
+    }
+
+    // partFile was just preallocated, with its blocks allocated or not
+    public static synchronized void preallocated(File partFile, boolean allocated) {
+        Reservation reservation = sReservations.get(partFile);
+        if (reservation != null)
+            reservation.mAllocated = allocated;
+    }
+
+    // The first length bytes of partFile are written, and nothing after
+    public static synchronized void written(File partFile, long length) {
+        Reservation reservation = sReservations.get(partFile);
+        if (reservation != null)
+            reservation.mWritten = length;
+    }
+
+    // Called as the player starts path: an object, or its link in a
+    // snapshot. Returns at once; the play is counted on sPlayCounter.
+    public static void played(final String path) {
+        sPlayCounter.execute(new Runnable() {
+            @Override
+            public void run() {
+                countPlay(path);
+            }
+        });
+    }
+
+    private static void countPlay(String path) {
+        String object = null;
+        String snapshots = ContentSnapshots.getSnapshotsPath() + File.separator;
+        if (path.startsWith(snapshots)) {
+            // snapshots/<id>/<file name>
+            int start = path.indexOf(File.separatorChar, snapshots.length());
+            if (start >= 0)
+                object = ContentSync.findLocalPath(path.substring(start + 1));
+        } else if (path.startsWith(ContentStore.getObjectsPath() + File.separator)) {
+            object = path;
+        }
+        if (object == null)
+            return;
+        synchronized (StorageQuota.class) {
+            Properties playStats = getPlayStats();
+            String key = getKey(new File(object));
+            playStats.setProperty(key, (getPlayCount(key) + 1) + " " + System.currentTimeMillis());
+            if (System.nanoTime() - sNextSave >= 0)
+                savePlayStats();
+        }
+    }
+
+    // Whether e comes from writing to a full volume
+    static boolean isOutOfSpace(Throwable e) {
+        for (; e != null; e = e.getCause()) {
+            String message = e.getMessage();
+            if (message != null && (message.contains("ENOSPC") || message.contains("No space left")))
+                return true;
+        }
+        return false;
+    }
+
+    // Free space, less the margin and what downloads in flight still
+    // need, or Long.MAX_VALUE if unknown. Files preallocated with their
+    // blocks count as written; sparse ones as far as they're known to be
+    // written, since their length says nothing about it.
+    private static long getFreeBytes() {
+        File downloadPath = new File(Content.getDownloadPath());
+        //noinspection ResultOfMethodCallIgnored
+        downloadPath.mkdirs();
+        long available = getAvailableBytes(downloadPath.getPath());
+        if (available == Long.MAX_VALUE)
+            return available;
+        long outstanding = 0;
+        for (Map.Entry<File, Reservation> entry : sReservations.entrySet()) {
+            Reservation reservation = entry.getValue();
+            long length = entry.getKey().length();
+            long held = reservation.mAllocated ? length : Math.min(reservation.mWritten, length);
+            outstanding += Math.max(reservation.mSizeInBytes - held, 0);
+        }
+        return available - MIN_FREE_BYTES - outstanding;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long getAvailableBytes(String path) {
+        StatFs statFs;
+        try {
+            statFs = new StatFs(path);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Can't tell the free space of " + path);
+            return Long.MAX_VALUE;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+            return getAvailableBytes(statFs);
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private static long getAvailableBytes(StatFs statFs) {
+        return statFs.getAvailableBytes();
+    }
+
+    // What the download still has to write. It resumes from the last
+    // checkpoint, not the length of a .part file that may be
+    // preallocated; one without validators is written again.
+    private static long getNeededBytes(Content content) {
+        long resumable = Content.getResumeOffset(getPartFile(content));
+        return Math.max(content.getSizeInBytes() - resumable, 0);
+    }
+
+    private static File getPartFile(Content content) {
+        return new File(content.mLocalPath + Content.PART_SUFFIX);
+    }
+
+    // Deletes unscheduled files in the store, least valuable first, until
+    // bytes are freed or none are left. Returns the bytes freed.
+    private static long evict(long bytes) {
+        if (sScheduled == null)
+            return 0;
+        List<File> parts = new ArrayList<>();
+        List<File> objects = new ArrayList<>();
+        List<File> seeds = new ArrayList<>();
+        for (File file : listFiles(new File(ContentStore.getObjectsPath()), new ArrayList<File>())) {
+            String path = file.getPath();
+            if (path.endsWith(ContentSync.VALIDATORS_SUFFIX))
+                path = path.substring(0, path.length() - ContentSync.VALIDATORS_SUFFIX.length());
+            if (path.endsWith(Content.PART_SUFFIX)) {
+                if (!sReservations.containsKey(new File(path))
+                        && !sScheduled.contains(path.substring(0, path.length() - Content.PART_SUFFIX.length())))
+                    parts.add(file);
+            } else if (sSeeds.contains(path)) {
+                seeds.add(file);
+            } else if (!sScheduled.contains(path)) {
+                objects.add(file);
+            }
+        }
+        sortByValue(objects);
+        sortByValue(seeds);
+        List<File> candidates = new ArrayList<>(parts);
+        candidates.addAll(objects);
+        candidates.addAll(seeds);
+
+        File root = new File(Content.getDownloadPath());
+        long freed = 0;
+        int evicted = 0;
+        for (File file : candidates) {
+            if (freed >= bytes)
+                break;
+            long length = file.length();
+            if (!file.delete())
+                continue;
+            freed += length;
+            evicted++;
+            if (getPlayStats().remove(getKey(file)) != null)
+                sNextSave = System.nanoTime();
+            File parent = file.getParentFile();
+            while (parent != null && !parent.equals(root) && parent.delete())
+                parent = parent.getParentFile();
+        }
+        Log.i(TAG, "Evicted " + evicted + " files, " + freed + " bytes, of " + bytes + " needed");
+        return freed;
+    }
+
+    // Least valuable first, by the eviction policy
+    private static void sortByValue(List<File> objects) {
+        final Map<File, Long> lastUsed = new HashMap<>();
+        final Map<File, Long> playCounts = new HashMap<>();
+        for (File object : objects) {
+            String key = getKey(object);
+            lastUsed.put(object, Math.max(getLastPlayed(key), object.lastModified()));
+            playCounts.put(object, getPlayCount(key));
+        }
+        final boolean byPlayCount = sEvictionPolicy == BY_PLAY_COUNT;
+        Collections.sort(objects, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                int result = byPlayCount ? Compat.compare(playCounts.get(lhs), playCounts.get(rhs)) : 0;
+                if (result == 0)
+                    result = Compat.compare(lastUsed.get(lhs), lastUsed.get(rhs));
+                return result;
+            }
+        });
+    }
+
+    private static List<File> listFiles(File directory, List<File> files) {
+        File[] children = directory.listFiles();
+        if (children == null)
+            return files;
+        for (File child : children) {
+            if (child.isDirectory())
+                listFiles(child, files);
+            else
+                files.add(child);
+        }
+        return files;
+    }
+
+    // "<algorithm>/<hash>" of an object in the store
+    private static String getKey(File object) {
+        File algorithm = object.getParentFile().getParentFile().getParentFile();
+        return algorithm.getName() + "/" + object.getName();
+    }
+
+    private static long getPlayCount(String key) {
+        return getPlayStat(key, 0);
+    }
+
+    private static long getLastPlayed(String key) {
+        return getPlayStat(key, 1);
+    }
+
+    private static long getPlayStat(String key, int field) {
+        String value = getPlayStats().getProperty(key);
+        if (value == null)
+            return 0;
+        String[] fields = value.trim().split(" ");
+        try {
+            return fields.length == 2 ? Long.parseLong(fields[field]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Those of the current download path
+    private static Properties getPlayStats() {
+        File file = new File(Content.getDownloadPath(), "play_stats");
+        if (sPlayStats == null || !file.equals(sPlayStatsFile)) {
+            sPlayStats = new Properties();
+            sPlayStatsFile = file;
+            ContentSync.loadProperties(sPlayStats, file);
+        }
+        return sPlayStats;
+    }
+
+    // Drops the stats of objects that are gone, and saves the rest
+    private static void prunePlayStats() {
+        Properties playStats = getPlayStats();
+        for (String key : playStats.stringPropertyNames()) {
+            String[] names = key.split("/");
+            if (names.length != 2 || !ContentStore.isValidHash(names[1])
+                    || !ContentStore.getObjectFile(names[0], names[1]).isFile())
+                playStats.remove(key);
+        }
+        savePlayStats();
+    }
+
+    private static void savePlayStats() {
+        ContentSync.storeProperties(getPlayStats(), sPlayStatsFile);
+        sNextSave = System.nanoTime() + SAVE_INTERVAL_IN_NANOS;
+    }
+
+    // The space a download in flight claims
+    private static class Reservation {
+        final long mSizeInBytes;
+        // What the .part file holds blocks for, if it's sparse
+        long mWritten;
+        boolean mAllocated;
+
+        Reservation(long sizeInBytes, long written) {
+            mSizeInBytes = sizeInBytes;
+            mWritten = written;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.rdm.rdmtestplayer;
+
+import java.io.InterruptedIOException;
+
+/*
+ * Limits a byte rate. Tokens accrue at the rate, up to a burst of
+ * BURST_SECONDS worth, and acquire() takes one per byte. Callers may run
+ * into debt; they then sleep until the rate has paid it off, so several
+ * threads sharing a bucket get the rate between them.
+ *
+ * A rate of 0 or less is unlimited, and then acquire() takes no lock.
+ */
+class TokenBucket {
+    private static final double BURST_SECONDS = 0.1d;
+    private static final long MIN_BURST_BYTES = 64 * 1024;
+
+    private volatile long mBytesPerSecond;
+    private double mTokens = 0.0d;
+    private long mLastRefill = System.nanoTime();
+
+    public TokenBucket(long bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    public long getRate() {
+        return mBytesPerSecond;
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        if (bytesPerSecond == mBytesPerSecond)
+            return;
+        refill(System.nanoTime());
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // Blocks until count more bytes fit within the rate
+    public void acquire(int count) throws InterruptedIOException {
+        if (mBytesPerSecond <= 0)
+            return;
+        long sleepNanos;
+        synchronized (this) {
+            long bytesPerSecond = mBytesPerSecond;
+            if (bytesPerSecond <= 0)
+                return;
+            refill(System.nanoTime());
+            mTokens -= count;
+            if (mTokens >= 0)
+                return;
+            sleepNanos = (long) (-mTokens * 1e9d / bytesPerSecond);
+        }
+        try {
+            Thread.sleep(sleepNanos / 1000000, (int) (sleepNanos % 1000000));
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while rate limited");
+        }
+    }
+
+    private void refill(long now) {
+        long bytesPerSecond = mBytesPerSecond;
+        if (bytesPerSecond > 0) {
+            double burst = Math.max(bytesPerSecond * BURST_SECONDS, MIN_BURST_BYTES);
+            mTokens = Math.min(mTokens + (now - mLastRefill) * (bytesPerSecond / 1e9d), burst);
+        } else {
+            mTokens = 0.0d;
+        }
+        mLastRefill = now;
+    }
+}
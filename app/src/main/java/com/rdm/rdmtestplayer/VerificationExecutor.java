@@ -0,0 +1,119 @@
+package com.rdm.rdmtestplayer;
+
+import android.os.Process;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Runs Content.needsUpdate() for many entries at once on a bounded pool,
+ * so hashing uses every core instead of one.
+ *
+ * The default thread count is the number of cores, but no more than
+ * MAX_DEFAULT_THREAD_COUNT: past that, players are limited by flash
+ * bandwidth rather than CPU. setThreadCount() overrides it.
+ *
+ * Work that mustn't compete with playback, like lazy verification, runs
+ * on threads of background priority (invokeAllInBackground()), as does
+ * anything a background thread runs here, e.g. block hashing for a
+ * repair it makes. A thread with a read budget (see ContentHasher) runs
+ * the tasks itself, so all they read is charged to it.
+ */
+class VerificationExecutor {
+    private static final String TAG = "VerificationExecutor";
+
+    private static final int MAX_DEFAULT_THREAD_COUNT = 4;
+
+    private static int sThreadCount = 0;
+
+    // 0 or less restores the default
+    public static void setThreadCount(int threadCount) {
+        sThreadCount = threadCount;
+    }
+
+    public static int getThreadCount() {
+        if (sThreadCount > 0)
+            return sThreadCount;
+        return Math.min(Runtime.getRuntime().availableProcessors(), MAX_DEFAULT_THREAD_COUNT);
+    }
+
+    // Returns needsUpdate() for every entry, in order
+    public static boolean[] needsUpdate(List<Content> contentList) throws InterruptedIOException {
+        List<Callable<Boolean>> tasks = new ArrayList<>(contentList.size());
+        for (final Content content : contentList) {
+            tasks.add(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return content.needsUpdate();
+                }
+            });
+        }
+        return invokeAll(tasks);
+    }
+
+    // Runs the tasks concurrently and returns their results, in order
+    public static boolean[] invokeAll(List<Callable<Boolean>> tasks) throws InterruptedIOException {
+        boolean background = Process.getThreadPriority(Process.myTid()) >= Process.THREAD_PRIORITY_BACKGROUND;
+        return invokeAll(tasks, background ? sBackgroundThreadFactory : sThreadFactory);
+    }
+
+    // Like invokeAll(), at background priority
+    public static boolean[] invokeAllInBackground(List<Callable<Boolean>> tasks) throws InterruptedIOException {
+        return invokeAll(tasks, sBackgroundThreadFactory);
+    }
+
+    private static boolean[] invokeAll(List<Callable<Boolean>> tasks, ThreadFactory threadFactory)
+            throws InterruptedIOException {
+        boolean[] result = new boolean[tasks.size()];
+        int threadCount = ContentHasher.getReadBudget() != null ? 1 : Math.min(getThreadCount(), tasks.size());
+        try {
+            if (threadCount <= 1) {
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = tasks.get(i).call();
+                }
+                return result;
+            }
+
+            ExecutorService executor = Executors.newFixedThreadPool(threadCount, threadFactory);
+            try {
+                List<Future<Boolean>> futures = executor.invokeAll(tasks);
+                for (int i = 0; i < result.length; i++) {
+                    result[i] = futures.get(i).get();
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Verification interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    // Entries of contentList that need an update, in order
+    public static List<Content> findOutOfDate(List<Content> contentList) throws InterruptedIOException {
+        boolean[] needsUpdate = needsUpdate(contentList);
+        List<Content> outOfDate = new ArrayList<>();
+        for (int i = 0; i < needsUpdate.length; i++) {
+            if (needsUpdate[i])
+                outOfDate.add(contentList.get(i));
+        }
+        return outOfDate;
+    }
+
+    private static final ThreadFactory sThreadFactory = new NamedThreadFactory(TAG);
+    private static final ThreadFactory sBackgroundThreadFactory =
+            new NamedThreadFactory(TAG + " (background)", Process.THREAD_PRIORITY_BACKGROUND);
+}
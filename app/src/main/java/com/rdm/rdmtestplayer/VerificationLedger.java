@@ -0,0 +1,196 @@
+package com.rdm.rdmtestplayer;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * On-disk record of files whose hash has been verified, together with
+ * their size, modification time and inode at the time. A file whose
+ * stat tuple hasn't changed since is trusted without reading it again.
+ *
+ * The inode is only available from API 21 on; it's recorded as 0 before
+ * that, and size and modification time have to do.
+ *
+ * Deep verify ignores the recorded state, so every file is hashed, but
+ * still records the results.
+ */
+class VerificationLedger {
+    private static final String TAG = "VerificationLedger";
+
+    private static final int MAGIC = 0x52444d56; // "RDMV"
+    private static final int VERSION = 1;
+
+    private static class Entry {
+        long mSizeInBytes;
+        long mLastModified;
+        long mInode;
+        String mHashAlgorithm;
+        String mHashString;
+    }
+
+    private final File mFile;
+    private final Map<String, Entry> mEntries = new HashMap<>();
+    private boolean mDeepVerify = false;
+    private boolean mDirty = false;
+
+    private VerificationLedger(File file) {
+        mFile = file;
+    }
+
+    // Starts out empty if file is missing or unreadable
+    public static VerificationLedger load(File file) {
+        VerificationLedger ledger = new VerificationLedger(file);
+        if (!file.isFile())
+            return ledger;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a verification ledger");
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Entry entry = new Entry();
+                entry.mSizeInBytes = in.readLong();
+                entry.mLastModified = in.readLong();
+                entry.mInode = in.readLong();
+                entry.mHashAlgorithm = in.readUTF();
+                entry.mHashString = in.readUTF();
+                ledger.mEntries.put(path, entry);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Ignoring verification ledger: " + file, e);
+            ledger.mEntries.clear();
+        } finally {
+            try {
+                if (in != null)
+                    in.close();
+            } catch (IOException ignored) {
+            }
+        }
+        return ledger;
+    }
+
+    public synchronized void setDeepVerify(boolean deepVerify) {
+        mDeepVerify = deepVerify;
+    }
+
+    public synchronized boolean hasEntry(File file) {
+        return mEntries.containsKey(file.getPath());
+    }
+
+    // True if file was verified against this hash and hasn't changed since
+    public synchronized boolean isVerified(File file, String hashAlgorithm, String hashString) {
+        if (mDeepVerify)
+            return false;
+        Entry entry = mEntries.get(file.getPath());
+        return entry != null
+                && entry.mHashAlgorithm.equals(hashAlgorithm)
+                && entry.mHashString.equalsIgnoreCase(hashString)
+                && entry.mSizeInBytes == file.length()
+                && entry.mLastModified == file.lastModified()
+                && entry.mInode == getInode(file);
+    }
+
+    public synchronized void record(File file, String hashAlgorithm, String hashString) {
+        Entry entry = new Entry();
+        entry.mSizeInBytes = file.length();
+        entry.mLastModified = file.lastModified();
+        entry.mInode = getInode(file);
+        entry.mHashAlgorithm = hashAlgorithm;
+        entry.mHashString = hashString;
+        mEntries.put(file.getPath(), entry);
+        mDirty = true;
+    }
+
+    public synchronized void remove(File file) {
+        if (mEntries.remove(file.getPath()) != null)
+            mDirty = true;
+    }
+
+    // Forgets everything but the given local paths
+    public synchronized void retain(Collection<String> paths) {
+        Set<String> keep = new HashSet<>(paths);
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (!keep.contains(iterator.next())) {
+                iterator.remove();
+                mDirty = true;
+            }
+        }
+    }
+
+    // Written to a temporary file first, so a crash never leaves half a ledger
+    public synchronized void save() {
+        if (!mDirty)
+            return;
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mEntries.size());
+            for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                out.writeUTF(mapEntry.getKey());
+                out.writeLong(entry.mSizeInBytes);
+                out.writeLong(entry.mLastModified);
+                out.writeLong(entry.mInode);
+                out.writeUTF(entry.mHashAlgorithm);
+                out.writeUTF(entry.mHashString);
+            }
+            out.close();
+            out = null;
+            if (tempFile.renameTo(mFile))
+                mDirty = false;
+            else
+                Log.w(TAG, "Failed to rename verification ledger: " + mFile);
+        } catch (IOException e) {
+            Log.w(TAG, e);
+        } finally {
+            try {
+                if (out != null)
+                    out.close();
+            } catch (IOException ignored) {
+            }
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    private static long getInode(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return 0;
+        return getInodeLollipop(file);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static long getInodeLollipop(File file) {
+        try {
+            return Os.stat(file.getPath()).st_ino;
+        } catch (ErrnoException e) {
+            return 0;
+        }
+    }
+}